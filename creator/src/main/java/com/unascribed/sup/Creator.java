@@ -5,26 +5,39 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Vector;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BooleanSupplier;
 import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -44,14 +57,21 @@ import org.lwjgl.system.MemoryStack;
 
 import com.formdev.flatlaf.extras.FlatAnimatedLafChange;
 import com.formdev.flatlaf.util.UIScale;
+import com.unascribed.sup.data.FileManifest;
 import com.unascribed.sup.data.HashFunction;
+import com.unascribed.sup.data.Version;
 import com.unascribed.sup.json.ManifestVersion;
 import com.unascribed.sup.json.Marshallable;
+import com.unascribed.sup.json.OneLineJsonArray;
 import com.unascribed.sup.json.OrderedVersion;
 import com.unascribed.sup.json.ReportableException;
 import com.unascribed.sup.json.manifest.BootstrapManifest;
 import com.unascribed.sup.json.manifest.RootManifest;
 import com.unascribed.sup.json.manifest.UpdateManifest;
+import com.unascribed.sup.pieces.BinaryManifest;
+import com.unascribed.sup.pieces.Chunker;
+import com.unascribed.sup.pieces.Delta;
+import com.unascribed.sup.util.Bases;
 import com.unascribed.sup.util.SwingHelper;
 
 import blue.endless.jankson.Jankson;
@@ -102,6 +122,14 @@ public class Creator {
 	public static final String VERSION = "0.0.1";
 	
 	public static final HashFunction DEFAULT_HASH_FUNCTION = HashFunction.SHA2_256;
+	/** files smaller than this aren't worth the extra requests of being split into chunks */
+	private static final long CHUNKING_THRESHOLD = 4*1024*1024;
+	/** files larger than this gain little from sharing a request with others */
+	private static final long PACKING_THRESHOLD = 64*1024;
+	/** pairs of files adding up to more than this aren't diffed, as both are held in memory to do it */
+	private static final long PATCHING_LIMIT = 128*1024*1024;
+	/** how many versions apart full-state checkpoints are */
+	private static final int CHECKPOINT_INTERVAL = 50;
 	
 	public static final ScheduledExecutorService sched = Executors.newSingleThreadScheduledExecutor();
 	
@@ -291,6 +319,19 @@ public class Creator {
 			});
 			field.setMaximumSize(new Dimension(32767, field.getPreferredSize().height));
 			box.add(field);
+			box.add(Box.createVerticalStrut(UIScale.scale(4)));
+			JCheckBox binary = new JCheckBox("Publish binary manifests", state.rootManifest.binary_manifests);
+			binary.setToolTipText("<html>Also publish each manifest in a compact binary form, which is quicker for clients to retrieve.<br/>"
+					+ "If you sign your pack, the .bin files must be signed too, or clients will use the JSON.</html>");
+			box.add(binary);
+			JCheckBox shards = new JCheckBox("Shard manifests by env", state.rootManifest.creator.shard_by_env);
+			shards.setToolTipText("<html>Also publish a copy of each manifest with only the files for each env, so clients retrieve less.<br/>"
+					+ "If you sign your pack, the shards must be signed too, or clients will use the whole manifest.</html>");
+			box.add(shards);
+			JCheckBox checkpoints = new JCheckBox("Publish checkpoints", state.rootManifest.creator.checkpoints);
+			checkpoints.setToolTipText("<html>Every "+CHECKPOINT_INTERVAL+" versions, also publish the full state of the pack, so clients that are far behind can catch up quicker.<br/>"
+					+ "If you sign your pack, the checkpoints must be signed too, or clients will apply every update in turn.</html>");
+			box.add(checkpoints);
 			box.add(Box.createVerticalGlue());
 			box.add(Box.createVerticalStrut(UIScale.scale(8)));
 			Box bottom = Box.createHorizontalBox();
@@ -303,19 +344,25 @@ public class Creator {
 			bottom.add(cancel);
 			bottom.add(Box.createHorizontalStrut(UIScale.scale(8)));
 			done.addActionListener((a) -> {
-				if (state.rootManifest.name.equals(field.getText().trim())) {
+				if (state.rootManifest.name.equals(field.getText().trim())
+						&& state.rootManifest.binary_manifests == binary.isSelected()
+						&& state.rootManifest.creator.shard_by_env == shards.isSelected()
+						&& state.rootManifest.creator.checkpoints == checkpoints.isSelected()) {
 					d.dispose();
 					return;
 				}
 				saveState("Change Options");
 				state.rootManifest.name = field.getText().trim();
+				state.rootManifest.binary_manifests = binary.isSelected();
+				state.rootManifest.creator.shard_by_env = shards.isSelected();
+				state.rootManifest.creator.checkpoints = checkpoints.isSelected();
 				updateTitle();
 				markDirty();
 				d.dispose();
 			});
 			bottom.add(done);
 			d.setContentPane(box);
-			d.setSize(UIScale.scale(240), UIScale.scale(120));
+			d.setSize(UIScale.scale(240), UIScale.scale(200));
 			d.getRootPane().setDefaultButton(done);
 			d.setLocationRelativeTo(frame);
 			d.setVisible(true);
@@ -947,14 +994,30 @@ public class Creator {
 		File dir = origin.getParentFile();
 		// TODO atomicity
 		try {
+			// these fill in manifest fields, so must happen before the manifests are written
+			generatePatches(dir);
+			generateChunks(dir);
+			generateGzips(dir);
+			generateArchive(dir);
+			generatePacks(dir);
+			List<String> envs = state.rootManifest.creator.shard_by_env ? shardEnvs() : new ArrayList<>();
+			generateCheckpoints(dir, envs);
+			state.rootManifest.env_shards = envs;
 			writeJson(jkson.toJson(state.rootManifest), origin);
 			if (state.bootstrapManifest != null) {
-				writeJson(jkson.toJson(state.bootstrapManifest), new File(dir, "bootstrap.json"));
+				writeManifests(dir, "bootstrap", state.bootstrapManifest, envs);
+			}
+			// clients guess at the bootstrap shard for their env before reading the root manifest,
+			// so one left over from an env that's gone would be picked up
+			File[] stale = dir.listFiles((d, name) -> name.matches("bootstrap\\.[^.]+\\.(json|bin)")
+					&& !envs.contains(name.substring(10, name.lastIndexOf('.'))));
+			if (stale != null) {
+				for (File f : stale) f.delete();
 			}
 			new File(dir, "versions").mkdirs();
 			for (Map.Entry<Integer, UpdateManifest> en : state.updateManifests.entrySet()) {
 				if (true || en.getValue().dirty) {
-					writeJson(jkson.toJson(en.getValue()), new File(dir, "versions/"+en.getKey()+".json"));
+					writeManifests(dir, "versions/"+en.getKey(), en.getValue(), envs);
 					en.getValue().dirty = false;
 				}
 			}
@@ -966,6 +1029,561 @@ public class Creator {
 		return true;
 	}
 	
+	/**
+	 * Create deltas for changes where both the old and new files are in the pack's blob store,
+	 * and keep the ones that are small enough to be worth downloading instead of the new file.
+	 */
+	private static void generatePatches(File dir) {
+		// a patch that wasn't worth keeping is recorded with a patch_size of -1, so the pair isn't
+		// diffed again on every save; blobs are named by their hash, so that holds for any change
+		// between the same pair
+		Set<String> rejected = new HashSet<>();
+		for (UpdateManifest um : state.updateManifests.values()) {
+			for (UpdateManifest.Change c : um.changes) {
+				if (c.patch_size != null && c.patch_size == -1) rejected.add(c.from_hash+"-"+c.to_hash);
+			}
+		}
+		for (UpdateManifest um : state.updateManifests.values()) {
+			for (UpdateManifest.Change c : um.changes) {
+				if (c.from_hash == null || c.to_hash == null) continue;
+				File patch = new File(dir, "patches/"+c.to_hash.substring(0, 2)+"/"+c.from_hash+"-"+c.to_hash);
+				if (patch.isFile()) {
+					c.patch_size = patch.length();
+					continue;
+				}
+				if (rejected.contains(c.from_hash+"-"+c.to_hash)) {
+					c.patch_size = -1L;
+					continue;
+				}
+				c.patch_size = null;
+				File from = new File(dir, "blobs/"+c.from_hash.substring(0, 2)+"/"+c.from_hash);
+				File to = new File(dir, "blobs/"+c.to_hash.substring(0, 2)+"/"+c.to_hash);
+				if (!from.isFile() || !to.isFile()) continue;
+				if (from.length()+to.length() > PATCHING_LIMIT) continue;
+				File tmp = new File(patch.getPath()+".tmp");
+				try {
+					patch.getParentFile().mkdirs();
+					try (FileOutputStream fos = new FileOutputStream(tmp)) {
+						Delta.create(from, to, fos);
+					}
+					if (tmp.length() < c.to_size/2) {
+						Files.move(tmp.toPath(), patch.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						c.patch_size = patch.length();
+					} else {
+						c.patch_size = -1L;
+						rejected.add(c.from_hash+"-"+c.to_hash);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (OutOfMemoryError e) {
+					// not worth failing the whole save over; the file can still be downloaded in full
+					System.err.println("Ran out of memory diffing "+c.from_hash+" against "+c.to_hash+", skipping");
+					c.patch_size = -1L;
+					rejected.add(c.from_hash+"-"+c.to_hash);
+				} finally {
+					tmp.delete();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Split large files in the pack's blob store into content-defined chunks, store any chunks
+	 * that aren't already in chunks/, and record each file's chunk list so clients can reuse the
+	 * chunks they already have. The whole blob is kept as well, for clients that have nothing.
+	 */
+	private static void generateChunks(File dir) {
+		// blobs are named by their hash, so a table worked out for one entry holds for any other
+		// with the same hash, and one already in the manifest only needs its chunks to still exist
+		Map<String, JsonArray> known = new HashMap<>();
+		if (state.bootstrapManifest != null) {
+			HashFunction func = state.bootstrapManifest.hash_function;
+			for (BootstrapManifest.BootstrapFile f : state.bootstrapManifest.files) {
+				f.chunks = chunkTable(dir, func, f.hash, f.size, f.chunks, known);
+			}
+		}
+		for (UpdateManifest um : state.updateManifests.values()) {
+			for (UpdateManifest.Change c : um.changes) {
+				c.chunks = chunkTable(dir, um.hash_function, c.to_hash, c.to_size, c.chunks, known);
+			}
+		}
+	}
+	
+	private static JsonArray chunkTable(File dir, HashFunction func, String hash, long size, JsonArray existing, Map<String, JsonArray> known) {
+		if (hash == null || size < CHUNKING_THRESHOLD) return null;
+		String key = func+":"+hash;
+		if (known.containsKey(key)) return known.get(key);
+		if (existing != null && chunksPresent(dir, existing, size)) {
+			known.put(key, existing);
+			return existing;
+		}
+		JsonArray arr = chunkTable(dir, func, hash);
+		known.put(key, arr);
+		return arr;
+	}
+	
+	/**
+	 * @return true if every chunk in the given table is in chunks/, and they add up to the
+	 * 		given size
+	 */
+	private static boolean chunksPresent(File dir, JsonArray table, long size) {
+		long total = 0;
+		for (JsonElement ele : table) {
+			if (!(ele instanceof JsonArray)) return false;
+			JsonArray rec = (JsonArray)ele;
+			if (rec.size() < 2 || !(rec.get(0) instanceof JsonPrimitive) || !(rec.get(1) instanceof JsonPrimitive)) return false;
+			String chunkHash = ((JsonPrimitive)rec.get(0)).asString();
+			long len = ((JsonPrimitive)rec.get(1)).asLong(-1);
+			if (chunkHash.length() < 2 || len < 0) return false;
+			File chunk = new File(dir, "chunks/"+chunkHash.substring(0, 2)+"/"+chunkHash);
+			if (chunk.length() != len || !chunk.isFile()) return false;
+			total += len;
+		}
+		return total == size;
+	}
+	
+	private static JsonArray chunkTable(File dir, HashFunction func, String hash) {
+		File blob = new File(dir, "blobs/"+hash.substring(0, 2)+"/"+hash);
+		if (!blob.isFile()) return null;
+		JsonArray arr = new JsonArray();
+		try (InputStream in = new FileInputStream(blob)) {
+			Chunker.chunk(in, (ofs, buf, len) -> {
+				MessageDigest md = func.createMessageDigest();
+				md.update(buf, 0, len);
+				String chunkHash = Bases.bytesToHex(md.digest());
+				File chunk = new File(dir, "chunks/"+chunkHash.substring(0, 2)+"/"+chunkHash);
+				if (!chunk.isFile()) {
+					chunk.getParentFile().mkdirs();
+					File tmp = new File(chunk.getPath()+".tmp");
+					try (FileOutputStream fos = new FileOutputStream(tmp)) {
+						fos.write(buf, 0, len);
+					}
+					Files.move(tmp.toPath(), chunk.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				OneLineJsonArray rec = new OneLineJsonArray();
+				rec.add(new JsonPrimitive(chunkHash));
+				rec.add(new JsonPrimitive((long)len));
+				arr.add(rec);
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return arr;
+	}
+	
+	/**
+	 * Gzip the blobs in the pack's blob store, and keep the gzips that are enough smaller than
+	 * the blob to be worth decompressing. Jars are already compressed, but configs and the like
+	 * often shrink a lot.
+	 * <p>
+	 * A gzip that wasn't worth keeping is recorded with a gzip_size of -1, which clients ignore, so
+	 * the blob isn't compressed again on every save.
+	 */
+	private static void generateGzips(File dir) {
+		// blobs are named by their hash, so whatever was decided for one entry holds for any other
+		// with the same hash
+		Set<String> rejected = new HashSet<>();
+		if (state.bootstrapManifest != null) {
+			for (BootstrapManifest.BootstrapFile f : state.bootstrapManifest.files) {
+				if (f.hash != null && f.gzip_size != null && f.gzip_size == -1) rejected.add(f.hash);
+			}
+		}
+		for (UpdateManifest um : state.updateManifests.values()) {
+			for (UpdateManifest.Change c : um.changes) {
+				if (c.to_hash != null && c.gzip_size != null && c.gzip_size == -1) rejected.add(c.to_hash);
+			}
+		}
+		if (state.bootstrapManifest != null) {
+			for (BootstrapManifest.BootstrapFile f : state.bootstrapManifest.files) {
+				f.gzip_size = gzipBlob(dir, f.hash, f.size, rejected);
+			}
+		}
+		for (UpdateManifest um : state.updateManifests.values()) {
+			for (UpdateManifest.Change c : um.changes) {
+				c.gzip_size = gzipBlob(dir, c.to_hash, c.to_size, rejected);
+			}
+		}
+	}
+	
+	private static Long gzipBlob(File dir, String hash, long size, Set<String> rejected) {
+		if (hash == null || size == 0) return null;
+		File blob = new File(dir, "blobs/"+hash.substring(0, 2)+"/"+hash);
+		File gz = new File(blob.getPath()+".gz");
+		if (gz.isFile()) return gz.length();
+		if (rejected.contains(hash)) return -1L;
+		if (!blob.isFile()) return null;
+		File tmp = new File(gz.getPath()+".tmp");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				GZIPOutputStream gzos = new GZIPOutputStream(fos, 65536) {{ def.setLevel(Deflater.BEST_COMPRESSION); }};
+				Files.copy(blob.toPath(), gzos);
+				gzos.finish();
+			}
+			// saving only a few percent isn't worth the decompression
+			if (tmp.length() < size-(size/8)) {
+				Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return gz.length();
+			}
+			rejected.add(hash);
+			return -1L;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			tmp.delete();
+		}
+		return null;
+	}
+	
+	/**
+	 * Bundle every bootstrap file that's served out of the pack's blob store into one gzipped
+	 * tar, with entries named by hash, so a fresh install can get them in one request. The archive
+	 * is named by a hash of its entries, so it's only rebuilt when they change.
+	 */
+	private static void generateArchive(File dir) {
+		BootstrapManifest bm = state.bootstrapManifest;
+		if (bm == null) return;
+		bm.archive = null;
+		bm.archive_size = null;
+		Set<String> hashes = new LinkedHashSet<>();
+		for (BootstrapManifest.BootstrapFile f : bm.files) {
+			// files with their own URL are retrieved from there
+			if (f.url != null || f.hash == null || f.size == 0) continue;
+			if (new File(dir, "blobs/"+f.hash.substring(0, 2)+"/"+f.hash).isFile()) hashes.add(f.hash);
+		}
+		MessageDigest md = HashFunction.SHA2_256.createMessageDigest();
+		for (String hash : hashes) {
+			md.update(hash.getBytes(StandardCharsets.UTF_8));
+			md.update((byte)'\n');
+		}
+		String name = hashes.isEmpty() ? null : "bootstrap-"+Bases.bytesToHex(md.digest()).substring(0, 16)+".tar.gz";
+		File[] stale = dir.listFiles((d, n) -> n.matches("bootstrap(-[0-9a-f]+)?\\.tar\\.gz") && !n.equals(name));
+		if (stale != null) {
+			for (File f : stale) f.delete();
+		}
+		if (name == null) return;
+		File archive = new File(dir, name);
+		if (archive.isFile()) {
+			bm.archive = archive.getName();
+			bm.archive_size = archive.length();
+			return;
+		}
+		File tmp = new File(archive.getPath()+".tmp");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				GZIPOutputStream out = new GZIPOutputStream(fos, 65536);
+				byte[] pad = new byte[512];
+				for (String hash : hashes) {
+					File blob = new File(dir, "blobs/"+hash.substring(0, 2)+"/"+hash);
+					long len = blob.length();
+					out.write(tarHeader(hash, len));
+					Files.copy(blob.toPath(), out);
+					out.write(pad, 0, (int)((512-(len%512))%512));
+				}
+				// end of archive
+				out.write(pad);
+				out.write(pad);
+				out.finish();
+			}
+			Files.move(tmp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			bm.archive = archive.getName();
+			bm.archive_size = archive.length();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * Concatenate the small blobs of each version into a packfile, recording where each one is,
+	 * so clients can retrieve them a few range requests at a time. The individual blobs are
+	 * kept as well. A pack that already has the layout the manifest records is left alone.
+	 */
+	private static void generatePacks(File dir) {
+		for (Map.Entry<Integer, UpdateManifest> en : state.updateManifests.entrySet()) {
+			UpdateManifest um = en.getValue();
+			Map<String, Long> offsets = new LinkedHashMap<>();
+			long total = 0;
+			for (UpdateManifest.Change c : um.changes) {
+				// files with their own URL are retrieved from there
+				if (c.url != null || c.to_hash == null || c.to_size == 0 || c.to_size > PACKING_THRESHOLD) continue;
+				if (offsets.containsKey(c.to_hash)) continue;
+				File blob = new File(dir, "blobs/"+c.to_hash.substring(0, 2)+"/"+c.to_hash);
+				if (blob.isFile()) {
+					offsets.put(c.to_hash, total);
+					total += blob.length();
+				}
+			}
+			String path = "packs/"+en.getKey()+".pack";
+			File pack = new File(dir, path);
+			// blobs are named by their hash, so the same layout means the same pack
+			boolean unchanged = offsets.size() >= 2 && path.equals(um.pack) && pack.isFile() && pack.length() == total;
+			for (UpdateManifest.Change c : um.changes) {
+				if (!Objects.equals(c.pack_offset, c.to_hash == null ? null : offsets.get(c.to_hash))) unchanged = false;
+			}
+			if (unchanged) continue;
+			um.pack = null;
+			for (UpdateManifest.Change c : um.changes) {
+				c.pack_offset = null;
+			}
+			// one file is just as well retrieved on its own
+			if (offsets.size() < 2) {
+				pack.delete();
+				continue;
+			}
+			File tmp = new File(pack.getPath()+".tmp");
+			try {
+				pack.getParentFile().mkdirs();
+				try (FileOutputStream fos = new FileOutputStream(tmp)) {
+					// in the order of their offsets
+					for (String hash : offsets.keySet()) {
+						Files.copy(new File(dir, "blobs/"+hash.substring(0, 2)+"/"+hash).toPath(), fos);
+					}
+				}
+				Files.move(tmp.toPath(), pack.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				um.pack = path;
+				for (UpdateManifest.Change c : um.changes) {
+					if (c.to_hash != null && offsets.containsKey(c.to_hash)) c.pack_offset = offsets.get(c.to_hash);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				tmp.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Write the full state of every {@link #CHECKPOINT_INTERVAL}th version as a bootstrap manifest
+	 * in checkpoints/, so clients that are far behind can jump to one rather than collapsing every
+	 * update in between. The state is rebuilt by replaying the updates from the first version.
+	 * Only done if the pack's options ask for it.
+	 */
+	private static void generateCheckpoints(File dir, List<String> envs) throws IOException {
+		Map<Integer, OrderedVersion> names = new HashMap<>();
+		if (state.rootManifest.versions.current != null) names.put(state.rootManifest.versions.current.code, state.rootManifest.versions.current);
+		for (OrderedVersion v : state.rootManifest.versions.history) names.put(v.code, v);
+		state.rootManifest.checkpoints.clear();
+		// the signing tooling needs to know about these, so they're opt-in; with them off, this
+		// just clears out any that were written before
+		if (state.rootManifest.creator.checkpoints) {
+			Map<String, BootstrapManifest.BootstrapFile> files = new TreeMap<>();
+			HashFunction func = null;
+			int expected = 1;
+			for (Map.Entry<Integer, UpdateManifest> en : state.updateManifests.entrySet()) {
+				int code = en.getKey();
+				UpdateManifest um = en.getValue();
+				// past a gap or a change of hash function, we no longer know the full state
+				if (code != expected || !names.containsKey(code) || (func != null && um.hash_function != func)) break;
+				expected++;
+				func = um.hash_function;
+				for (UpdateManifest.Change c : um.changes) {
+					if (c.to_hash == null) {
+						files.remove(c.path);
+						continue;
+					}
+					BootstrapManifest.BootstrapFile f = new BootstrapManifest.BootstrapFile();
+					f.path = c.path;
+					f.envs = c.envs;
+					f.flavors = c.flavors;
+					f.hash = c.to_hash;
+					f.size = c.to_size;
+					f.url = c.url;
+					f.mirrors = c.mirrors;
+					f.chunks = c.chunks;
+					f.gzip_size = c.gzip_size;
+					files.put(c.path, f);
+				}
+				if (code % CHECKPOINT_INTERVAL != 0) continue;
+				BootstrapManifest cp = BootstrapManifest.create();
+				cp.version = names.get(code);
+				cp.hash_function = func;
+				cp.files.addAll(files.values());
+				new File(dir, "checkpoints").mkdirs();
+				writeManifests(dir, "checkpoints/"+code, cp, envs);
+				state.rootManifest.checkpoints.add(code);
+			}
+		}
+		// anything for a checkpoint that's no longer listed, including its signatures and shards
+		File[] stale = new File(dir, "checkpoints").listFiles((d, name) -> {
+			int dot = name.indexOf('.');
+			if (dot <= 0 || !name.substring(0, dot).matches("[0-9]{1,9}")) return false;
+			return !state.rootManifest.checkpoints.contains(Integer.parseInt(name.substring(0, dot)));
+		});
+		if (stale != null) {
+			for (File f : stale) f.delete();
+		}
+	}
+	
+	private static byte[] tarHeader(String name, long size) {
+		byte[] header = new byte[512];
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+		putOctal(header, 100, 8, 0644);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		if (size < 077777777777L) {
+			putOctal(header, 124, 12, size);
+		} else {
+			// GNU base-256 extension
+			header[124] = (byte)0x80;
+			for (int i = 0; i < 8; i++) {
+				header[135-i] = (byte)(size >>> (i*8));
+			}
+		}
+		putOctal(header, 136, 12, 0);
+		header[156] = '0';
+		System.arraycopy(("ustar\0"+"00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+		// the checksum is calculated with its own field full of spaces
+		Arrays.fill(header, 148, 156, (byte)' ');
+		long sum = 0;
+		for (byte b : header) sum += b&0xFF;
+		putOctal(header, 148, 7, sum);
+		return header;
+	}
+	
+	private static void putOctal(byte[] buf, int ofs, int len, long value) {
+		String str = Long.toOctalString(value);
+		// zero-padded, leaving room for a terminating NUL
+		for (int i = 0; i < len-1; i++) {
+			int si = str.length()-(len-1)+i;
+			buf[ofs+i] = (byte)(si < 0 ? '0' : str.charAt(si));
+		}
+		buf[ofs+len-1] = 0;
+	}
+	
+	/**
+	 * @return every env that some file is restricted to, each of which gets its own shard of the
+	 * 		bootstrap and update manifests so clients don't have to retrieve entries they'll skip
+	 */
+	private static List<String> shardEnvs() {
+		Set<String> envs = new TreeSet<>();
+		if (state.bootstrapManifest != null) {
+			for (BootstrapManifest.BootstrapFile f : state.bootstrapManifest.files) {
+				if (f.envs != null) envs.addAll(f.envs);
+			}
+		}
+		for (UpdateManifest um : state.updateManifests.values()) {
+			for (UpdateManifest.Change c : um.changes) {
+				if (c.envs != null) envs.addAll(c.envs);
+			}
+		}
+		// these end up in file names
+		envs.removeIf(env -> !env.matches("[a-z0-9_-]+"));
+		return new ArrayList<>(envs);
+	}
+	
+	private static void writeManifests(File dir, String base, BootstrapManifest bm, List<String> envs) throws IOException {
+		writeJson(jkson.toJson(bm), new File(dir, base+".json"));
+		writeBinary(toFileManifest(bm), new File(dir, base+".bin"));
+		for (String env : envs) {
+			BootstrapManifest shard = BootstrapManifest.create();
+			shard.version = bm.version;
+			shard.hash_function = bm.hash_function;
+			shard.archive = bm.archive;
+			shard.archive_size = bm.archive_size;
+			for (BootstrapManifest.BootstrapFile f : bm.files) {
+				if (f.envs == null || f.envs.contains(env)) shard.files.add(f);
+			}
+			writeJson(jkson.toJson(shard), new File(dir, base+"."+env+".json"));
+			writeBinary(toFileManifest(shard), new File(dir, base+"."+env+".bin"));
+		}
+	}
+	
+	private static void writeManifests(File dir, String base, UpdateManifest um, List<String> envs) throws IOException {
+		writeJson(jkson.toJson(um), new File(dir, base+".json"));
+		writeBinary(toFileManifest(um), new File(dir, base+".bin"));
+		for (String env : envs) {
+			UpdateManifest shard = UpdateManifest.create();
+			shard.hash_function = um.hash_function;
+			shard.pack = um.pack;
+			shard.published = um.published;
+			for (UpdateManifest.Change c : um.changes) {
+				if (c.envs == null || c.envs.contains(env)) shard.changes.add(c);
+			}
+			writeJson(jkson.toJson(shard), new File(dir, base+"."+env+".json"));
+			writeBinary(toFileManifest(shard), new File(dir, base+"."+env+".bin"));
+		}
+	}
+	
+	private static FileManifest toFileManifest(BootstrapManifest bm) {
+		FileManifest fm = new FileManifest();
+		fm.flavor = FileManifest.BOOTSTRAP;
+		fm.hashFunction = bm.hash_function;
+		fm.version = new Version(bm.version.name, bm.version.code);
+		fm.archive = bm.archive;
+		fm.archiveSize = bm.archive_size == null ? -1 : bm.archive_size;
+		for (BootstrapManifest.BootstrapFile f : bm.files) {
+			FileManifest.Entry e = new FileManifest.Entry();
+			e.path = f.path;
+			e.envs = f.envs;
+			e.flavors = f.flavors;
+			e.hash = f.hash;
+			e.size = f.size;
+			e.url = f.url;
+			e.mirrors = f.mirrors;
+			setChunks(e, f.chunks);
+			e.gzipSize = f.gzip_size == null ? -1 : f.gzip_size;
+			fm.entries.add(e);
+		}
+		return fm;
+	}
+	
+	private static FileManifest toFileManifest(UpdateManifest um) {
+		FileManifest fm = new FileManifest();
+		fm.flavor = FileManifest.UPDATE;
+		fm.hashFunction = um.hash_function;
+		fm.pack = um.pack;
+		for (UpdateManifest.Change c : um.changes) {
+			FileManifest.Entry e = new FileManifest.Entry();
+			e.path = c.path;
+			e.envs = c.envs;
+			e.flavors = c.flavors;
+			e.fromHash = c.from_hash;
+			e.fromSize = c.from_size;
+			e.hash = c.to_hash;
+			e.size = c.to_size;
+			e.url = c.url;
+			e.mirrors = c.mirrors;
+			e.patchSize = c.patch_size == null ? -1 : c.patch_size;
+			if (c.zip_records != null) {
+				e.zipRecords = new long[c.zip_records.size()][];
+				for (int i = 0; i < e.zipRecords.length; i++) {
+					JsonArray rec = (JsonArray)c.zip_records.get(i);
+					e.zipRecords[i] = new long[] {((JsonPrimitive)rec.get(0)).asLong(0), ((JsonPrimitive)rec.get(1)).asLong(0)};
+				}
+			}
+			setChunks(e, c.chunks);
+			e.gzipSize = c.gzip_size == null ? -1 : c.gzip_size;
+			e.packOffset = c.pack_offset == null ? -1 : c.pack_offset;
+			fm.entries.add(e);
+		}
+		return fm;
+	}
+	
+	private static void setChunks(FileManifest.Entry e, JsonArray chunks) {
+		if (chunks == null) return;
+		e.chunkHashes = new String[chunks.size()];
+		e.chunkSizes = new long[chunks.size()];
+		for (int i = 0; i < chunks.size(); i++) {
+			JsonArray c = (JsonArray)chunks.get(i);
+			e.chunkHashes[i] = ((JsonPrimitive)c.get(0)).asString();
+			e.chunkSizes[i] = ((JsonPrimitive)c.get(1)).asLong(0);
+		}
+	}
+	
+	private static void writeBinary(FileManifest fm, File f) throws IOException {
+		if (!state.rootManifest.binary_manifests) {
+			// don't leave an old one around for a client to guess at
+			f.delete();
+			return;
+		}
+		try (FileOutputStream fos = new FileOutputStream(f)) {
+			BinaryManifest.write(fm, fos);
+		}
+	}
+	
 	private static void writeJson(JsonElement json, File f) throws IOException {
 		String str = json.toJson(JsonGrammar.STRICT);
 		try (FileOutputStream fos = new FileOutputStream(f)) {
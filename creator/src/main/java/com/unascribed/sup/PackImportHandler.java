@@ -59,11 +59,16 @@ import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 
 import com.formdev.flatlaf.util.UIScale;
+import com.unascribed.sup.json.OneLineJsonArray;
 import com.unascribed.sup.json.OrderedVersion;
 import com.unascribed.sup.json.manifest.RootManifest;
 import com.unascribed.sup.json.manifest.UpdateManifest;
+import com.unascribed.sup.pieces.ZipRecords;
 import com.unascribed.sup.util.Bases;
 
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonPrimitive;
+
 public class PackImportHandler {
 
 	public static void invoke() {
@@ -517,6 +522,10 @@ public class PackImportHandler {
 									}
 									change.to_hash = hexDigest;
 									change.to_size = length;
+									String lowerPath = path.toLowerCase(Locale.ROOT);
+									if (change.from_hash != null && (lowerPath.endsWith(".jar") || lowerPath.endsWith(".zip"))) {
+										change.zip_records = zipRecordTable(f);
+									}
 									if (!change.isUseless()) {
 										um.changes.add(change);
 									}
@@ -637,5 +646,23 @@ public class PackImportHandler {
 		dialog.setLocationRelativeTo(Creator.frame);
 		dialog.setVisible(true);
 	}
+	
+	private static JsonArray zipRecordTable(File f) {
+		try {
+			List<ZipRecords.Record> records = ZipRecords.read(f);
+			if (records == null) return null;
+			JsonArray arr = new JsonArray();
+			for (ZipRecords.Record r : records) {
+				OneLineJsonArray rec = new OneLineJsonArray();
+				rec.add(new JsonPrimitive(r.length));
+				rec.add(new JsonPrimitive(r.crc&0xFFFFFFFFL));
+				arr.add(rec);
+			}
+			return arr;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
 
 }
@@ -11,6 +11,7 @@ import com.unascribed.sup.json.OneLineJsonArray;
 import com.unascribed.sup.json.OrderedVersion;
 import com.unascribed.sup.json.SkipNullsMarshallable;
 
+import blue.endless.jankson.JsonArray;
 import blue.endless.jankson.JsonElement;
 import blue.endless.jankson.JsonObject;
 import blue.endless.jankson.api.Marshaller;
@@ -21,6 +22,9 @@ public class BootstrapManifest extends AbstractManifest {
 	public OrderedVersion version;
 	public HashFunction hash_function;
 	public List<BootstrapFile> files = new ArrayList<>();
+	/** a gzipped tar of the files served from blobs/, named by hash, if there is one */
+	public String archive;
+	public Long archive_size;
 	
 	public static class BootstrapFile implements SkipNullsMarshallable {
 		public String path;
@@ -31,6 +35,11 @@ public class BootstrapManifest extends AbstractManifest {
 		public long size;
 		
 		public String url;
+		public List<String> mirrors;
+		/** hash and size of each content-defined chunk of the file, in chunks/, if it's large */
+		public JsonArray chunks;
+		/** size of the gzip of the blob alongside it in blobs/, if there is one, or -1 if it wasn't worth keeping */
+		public Long gzip_size;
 		
 		@Override
 		public JsonElement serialize(Marshaller m) {
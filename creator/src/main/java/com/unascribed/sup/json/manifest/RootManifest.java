@@ -16,6 +16,13 @@ public class RootManifest extends AbstractManifest {
 	public Versions versions = new Versions();
 	public CreatorOptions creator = new CreatorOptions();
 	public List<Flavor> flavors = new ArrayList<>();
+	public List<String> mirrors = new ArrayList<>();
+	/** whether bootstrap and update manifests are also available in binary form */
+	public boolean binary_manifests;
+	/** versions with a full-state manifest in checkpoints/ */
+	public List<Integer> checkpoints = new ArrayList<>();
+	/** envs with their own shard of each bootstrap, update and checkpoint manifest */
+	public List<String> env_shards = new ArrayList<>();
 	
 	public static class Versions {
 		public OrderedVersion current;
@@ -24,6 +31,10 @@ public class RootManifest extends AbstractManifest {
 	
 	public static class CreatorOptions {
 		public Set<String> ignore = new HashSet<>();
+		/** whether to publish a shard of each manifest for every env */
+		public boolean shard_by_env;
+		/** whether to publish checkpoints for clients that are far behind */
+		public boolean checkpoints;
 	}
 	
 	public static class Flavor {
@@ -11,6 +11,7 @@ import com.unascribed.sup.json.ManifestData;
 import com.unascribed.sup.json.OneLineJsonArray;
 import com.unascribed.sup.json.SkipNullsMarshallable;
 
+import blue.endless.jankson.JsonArray;
 import blue.endless.jankson.JsonElement;
 import blue.endless.jankson.JsonObject;
 import blue.endless.jankson.api.Marshaller;
@@ -22,6 +23,8 @@ public class UpdateManifest extends AbstractManifest {
 	
 	public HashFunction hash_function;
 	public List<Change> changes = new ArrayList<>();
+	/** the packfile of this version's small blobs, if there is one */
+	public String pack;
 	public boolean published;
 	
 	public static class Change implements SkipNullsMarshallable {
@@ -36,6 +39,18 @@ public class UpdateManifest extends AbstractManifest {
 		public long to_size;
 		
 		public String url;
+		public List<String> mirrors;
+		
+		/** size of the delta in patches/ from from_hash to to_hash, if there is one, or -1 if it wasn't worth keeping */
+		public Long patch_size;
+		/** length and CRC32 of each raw record of the new file, if it's a zip */
+		public JsonArray zip_records;
+		/** hash and size of each content-defined chunk of the new file, in chunks/, if it's large */
+		public JsonArray chunks;
+		/** size of the gzip of the blob alongside it in blobs/, if there is one, or -1 if it wasn't worth keeping */
+		public Long gzip_size;
+		/** offset of the new file in this version's pack, if it's in there */
+		public Long pack_offset;
 		
 		@Override
 		public JsonElement serialize(Marshaller m) {
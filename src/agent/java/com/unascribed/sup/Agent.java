@@ -12,22 +12,34 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 import com.grack.nanojson.JsonObject;
 import com.grack.nanojson.JsonParser;
@@ -37,22 +49,35 @@ import com.unascribed.sup.PuppetHandler.AlertOption;
 import com.unascribed.sup.PuppetHandler.AlertOptionType;
 import com.unascribed.sup.data.ConflictType;
 import com.unascribed.sup.data.SourceFormat;
+import com.unascribed.sup.data.Version;
 import com.unascribed.sup.handler.PackwizHandler;
 import com.unascribed.sup.handler.NativeHandler;
 import com.unascribed.sup.handler.AbstractFormatHandler.CheckResult;
 import com.unascribed.sup.handler.AbstractFormatHandler.FilePlan;
 import com.unascribed.sup.handler.AbstractFormatHandler.FileState;
 import com.unascribed.sup.handler.AbstractFormatHandler.UpdatePlan;
+import com.unascribed.sup.pieces.CancellationSignal;
+import com.unascribed.sup.pieces.Delta;
 import com.unascribed.sup.pieces.ExceptableRunnable;
 import com.unascribed.sup.pieces.MemoryCookieJar;
 import com.unascribed.sup.pieces.NullPrintStream;
 import com.unascribed.sup.pieces.QDIni;
 import com.unascribed.sup.pieces.QDIni.QDIniException;
+import com.unascribed.sup.pieces.TarReader;
 import com.unascribed.sup.signing.SigProvider;
+import com.unascribed.sup.util.Bases;
+import com.unascribed.sup.util.BlobCache;
+import com.unascribed.sup.util.ChunkAssembler;
+import com.unascribed.sup.util.Futures;
+import com.unascribed.sup.util.HashIndex;
+import com.unascribed.sup.util.HostScheduler;
+import com.unascribed.sup.util.Mirrors;
+import com.unascribed.sup.util.Packfiles;
 import com.unascribed.sup.util.RequestHelper;
 import com.unascribed.sup.util.RequestHelper.DownloadedFile;
 import com.unascribed.sup.util.RequestHelper.Retry;
 import com.unascribed.sup.util.Strings;
+import com.unascribed.sup.util.ZipRebuilder;
 
 import okhttp3.OkHttpClient;
 
@@ -70,7 +95,8 @@ public class Agent {
 	
 	private static boolean standalone;
 	
-	public static List<ExceptableRunnable> cleanup = new ArrayList<>();
+	/** added to from download threads, so hold its lock to walk it */
+	public static List<ExceptableRunnable> cleanup = Collections.synchronizedList(new ArrayList<>());
 	public static QDIni config;
 	
 	public static String detectedEnv;
@@ -92,12 +118,24 @@ public class Agent {
 	static final Object dangerMutex = new Object();
 	private static final SimpleDateFormat logDateFormat = new SimpleDateFormat("HH:mm:ss");
 	
-	public static final OkHttpClient okhttp = new OkHttpClient.Builder()
-			.connectTimeout(30, TimeUnit.SECONDS)
-			.readTimeout(15, TimeUnit.SECONDS)
-			.callTimeout(120, TimeUnit.SECONDS)
-			.cookieJar(new MemoryCookieJar())
-			.build();
+	private static volatile boolean okhttpCreated = false;
+	
+	// a holder, so that runs that never touch the network don't pay for building the client
+	private static class OkHttp {
+		static final OkHttpClient client = new OkHttpClient.Builder()
+				.connectTimeout(30, TimeUnit.SECONDS)
+				.readTimeout(15, TimeUnit.SECONDS)
+				.callTimeout(120, TimeUnit.SECONDS)
+				.cookieJar(new MemoryCookieJar())
+				.build();
+		static {
+			okhttpCreated = true;
+		}
+	}
+	
+	public static OkHttpClient okhttp() {
+		return OkHttp.client;
+	}
 	
 	public static void main(String[] args) {
 		standalone = true;
@@ -141,6 +179,26 @@ public class Agent {
 				return;
 			}
 			
+			stateFile = new File(".unsup-state.json");
+			if (stateFile.exists()) {
+				try (InputStream in = new FileInputStream(stateFile)) {
+					state = JsonParser.object().from(in);
+				} catch (Exception e) {
+					log("ERROR", "Couldn't load state file! Exiting.", e);
+					exit(EXIT_CONSISTENCY_ERROR);
+					return;
+				}
+			} else {
+				state = new JsonObject();
+			}
+			
+			if (isRecentlyChecked(src)) {
+				Version ourVersion = Version.fromJson(state.getObject("current_version"));
+				if (ourVersion != null) sourceVersion = ourVersion.name;
+				handOver();
+				return;
+			}
+			
 			if (!noGui) {
 				PuppetHandler.create();
 				cleanup.add(PuppetHandler::destroy);
@@ -157,19 +215,6 @@ public class Agent {
 				}
 			}
 			
-			stateFile = new File(".unsup-state.json");
-			if (stateFile.exists()) {
-				try (InputStream in = new FileInputStream(stateFile)) {
-					state = JsonParser.object().from(in);
-				} catch (Exception e) {
-					log("ERROR", "Couldn't load state file! Exiting.", e);
-					exit(EXIT_CONSISTENCY_ERROR);
-					return;
-				}
-			} else {
-				state = new JsonObject();
-			}
-			
 			PuppetHandler.setPuppetColorsFromConfig();
 			
 			PuppetHandler.tellPuppet(":build");
@@ -184,10 +229,17 @@ public class Agent {
 			PuppetHandler.updateTitle("Checking for updates...", false);
 			try {
 				CheckResult res = null;
-				if (fmt == SourceFormat.UNSUP) {
-					res = NativeHandler.check(src);
-				} else if (fmt == SourceFormat.PACKWIZ) {
-					res = PackwizHandler.check(src);
+				// past this, we give up on checking and start with whatever we have
+				int checkDeadline = config.getInt("check_deadline", 0);
+				if (checkDeadline > 0) RequestHelper.setDeadline(System.nanoTime()+TimeUnit.SECONDS.toNanos(checkDeadline));
+				try {
+					if (fmt == SourceFormat.UNSUP) {
+						res = NativeHandler.check(src);
+					} else if (fmt == SourceFormat.PACKWIZ) {
+						res = PackwizHandler.check(src);
+					}
+				} finally {
+					RequestHelper.clearDeadline();
 				}
 				if (res != null) {
 					sourceVersion = res.ourVersion.name;
@@ -195,6 +247,7 @@ public class Agent {
 						applyUpdate(res);
 					}
 				}
+				recordCheck(src);
 			} catch (Throwable t) {
 				log("WARN", "Error while updating", t);
 				PuppetHandler.tellPuppet(":expedite=openTimeout");
@@ -207,6 +260,13 @@ public class Agent {
 				}
 			} finally {
 				PuppetHandler.tellPuppet(":subtitle=");
+				if (Mirrors.updateState(state)) {
+					try {
+						saveState();
+					} catch (IOException e) {
+						log("WARN", "Failed to save mirror health", e);
+					}
+				}
 			}
 			
 			if (awaitingExit) Agent.blockForever();
@@ -227,21 +287,7 @@ public class Agent {
 				}
 			}
 			
-			if (standalone) {
-				log("INFO", "Ran in standalone mode, no program will be started.");
-				log("INFO", "It is recommended you use unsup as a Java agent via -javaagent:unsup.jar to piggyback on another program's launch.");
-			} else {
-				log("INFO", "All done, handing over control.");
-				// poke the Unsup class so it loads and finalizes all of its values
-				if (Unsup.SOURCE_VERSION != null) Unsup.SOURCE_VERSION.toString();
-				String cmd = System.getProperty("sun.java.command");
-				if ("org.multimc.EntryPoint".equals(cmd)) {
-					// we actually run before MultiMC's Java-side launcher code, so print a
-					// blank line to put "Using onesix launcher." in an island like it's
-					// supposed to be
-					System.out.println();
-				}
-			}
+			handOver();
 		} catch (QDIniException e) {
 			log("ERROR", "Config file error: "+e.getMessage()+"! Exiting.");
 			exit(EXIT_CONFIG_ERROR);
@@ -257,6 +303,50 @@ public class Agent {
 	// "step" methods, called only once, exist to turn premain() into a logical overview that can be
 	// drilled down into as necessary
 	
+	/**
+	 * @return true if check_interval is set, the last successful check was within it, and nothing
+	 * 		we know of has changed locally since then, so we needn't check again yet
+	 */
+	private static boolean isRecentlyChecked(URL src) {
+		int interval = config.getInt("check_interval", 0);
+		if (interval <= 0) return false;
+		if (SysProps.FORCE_CHECK) {
+			log("INFO", "Forced to check for updates, ignoring check_interval");
+			return false;
+		}
+		JsonObject last = state.getObject("last_check");
+		if (last == null) return false;
+		long ago = System.currentTimeMillis()-last.getLong("time", 0);
+		if (ago < 0 || ago > TimeUnit.SECONDS.toMillis(interval)) return false;
+		if (!checkFingerprint(src).equals(last.getString("fingerprint"))) {
+			log("INFO", "Last check was recent, but things have changed locally since then");
+			return false;
+		}
+		log("INFO", "Last successful check was "+TimeUnit.MILLISECONDS.toSeconds(ago)+"s ago, within the check interval of "+interval+"s, and nothing has changed locally. Skipping this one");
+		return true;
+	}
+	
+	private static void recordCheck(URL src) {
+		if (config.getInt("check_interval", 0) <= 0) return;
+		JsonObject last = new JsonObject();
+		last.put("time", System.currentTimeMillis());
+		last.put("fingerprint", checkFingerprint(src));
+		state.put("last_check", last);
+		try {
+			saveState();
+		} catch (IOException e) {
+			log("WARN", "Failed to save time of last check", e);
+		}
+	}
+	
+	/**
+	 * A summary of everything a check depends on that can change locally: where we're checking,
+	 * as what env, and the size and modification time of every file we've hashed.
+	 */
+	private static String checkFingerprint(URL src) {
+		return src+"\n"+detectedEnv+"\n"+HashIndex.fingerprint();
+	}
+	
 	private static void applyUpdate(CheckResult res) throws IOException {
 		UpdatePlan<?> plan = res.plan;
 		boolean bootstrapping = plan.isBootstrap;
@@ -269,7 +359,9 @@ public class Agent {
 			log("DEBUG", "- "+en.getKey()+" is currently "+ponder(from));
 			log("DEBUG", "  It has been changed to "+ponder(to.state));
 			if (to.url != null) {
-				if (to.fallbackUrl != null) {
+				if (!to.mirrorUrls.isEmpty()) {
+					log("DEBUG", "  I'll be grabbing that from "+to.url+" (or one of "+to.mirrorUrls.size()+" mirrors, or "+to.fallbackUrl+", if that doesn't work)");
+				} else if (to.fallbackUrl != null) {
 					log("DEBUG", "  I'll be grabbing that from "+to.url+" (or "+to.fallbackUrl+" if that doesn't work)");
 				} else {
 					log("DEBUG", "  I'll be grabbing that from "+to.url);
@@ -285,62 +377,59 @@ public class Agent {
 			}
 			log("DEBUG", "Continuing.");
 		}
-		long progressDenom = 1;
 		File wd = new File("");
+		// keep whatever we hashed even if we bail out partway through
+		cleanup.add(HashIndex::save);
 		PuppetHandler.updateSubtitle("Verifying consistency");
+		// hash everything up front in parallel, then ask about all the conflicts afterwards
+		Map<String, Future<ConflictType>> verdicts = new HashMap<>();
+		// while that's going, ask about the size of anything we don't know the size of
+		HostScheduler sizeSvc = new HostScheduler();
+		List<Future<?>> sizeFutures = new ArrayList<>();
+		for (FilePlan f : plan.files.values()) {
+			// hostile hosts get upset if we poke them out of turn
+			if (f.state.size != -1 || f.url == null || f.hostile) continue;
+			sizeFutures.add(sizeSvc.submit(f.url, () -> {
+				f.sizeHint = RequestHelper.contentLength(f.url);
+				return null;
+			}));
+		}
+		sizeSvc.shutdown();
+		ExecutorService verifySvc = Executors.newFixedThreadPool(Math.max(1, Math.min(plan.files.size(), Runtime.getRuntime().availableProcessors())));
+		for (Map.Entry<String, ? extends FilePlan> en : plan.files.entrySet()) {
+			String path = en.getKey();
+			FileState from = plan.expectedState.getOrDefault(path, FileState.EMPTY);
+			FileState to = en.getValue().state;
+			File dest = new File(path);
+			if (!dest.getAbsolutePath().startsWith(wd.getAbsolutePath()+File.separator))
+				throw new IOException("Refusing to download to a file outside of working directory");
+			verdicts.put(path, verifySvc.submit(() -> checkConsistency(path, from, to, dest)));
+		}
+		verifySvc.shutdown();
 		Set<String> moveAside = new HashSet<>();
 		Map<ConflictType, AlertOption> conflictPreload = new EnumMap<>(ConflictType.class);
 		for (Map.Entry<String, ? extends FilePlan> en : plan.files.entrySet()) {
 			String path = en.getKey();
-			FileState from = plan.expectedState.getOrDefault(path, FileState.EMPTY);
 			FilePlan f = en.getValue();
 			FileState to = f.state;
 			File dest = new File(path);
-			if (!dest.getAbsolutePath().startsWith(wd.getAbsolutePath()+File.separator))
-				throw new IOException("Refusing to download to a file outside of working directory");
-			ConflictType conflictType = ConflictType.NO_CONFLICT;
-			if (dest.exists()) {
-				boolean normalConflict = false;
-				long size = dest.length();
-				if (from.hash == null) {
-					if (to.sizeMatches(size) && to.hash.equals(RequestHelper.hash(to.func, dest))) {
-						log("INFO", path+" was created in this update and locally, but the local version matches the update. Skipping");
-						continue;
-					}
-					conflictType = ConflictType.LOCAL_AND_REMOTE_CREATED;
-				} else if (from.sizeMatches(size)) {
-					String hash = RequestHelper.hash(from.func, dest);
-					if (from.hash.equals(hash)) {
-						log("INFO", path+" matches the expected from hash");
-					} else if (to.sizeMatches(size) && to.hash.equals(from.func == to.func ? hash : RequestHelper.hash(to.func, dest))) {
-						log("INFO", path+" matches the expected to hash, so has already been updated locally. Skipping");
-						continue;
-					} else {
-						log("INFO", "CONFLICT: "+path+" doesn't match the expected from hash ("+hash+" != "+from.hash+")");
-						normalConflict = true;
-					}
-				} else if (to.sizeMatches(size) && to.hash.equals(RequestHelper.hash(to.func, dest))) {
-					log("INFO", path+" matches the expected to hash, so has already been updated locally. Skipping");
-					continue;
-				} else {
-					log("INFO", "CONFLICT: "+path+" doesn't match the expected from size ("+size+" != "+from.size+")");
-					normalConflict = true;
-				}
-				if (normalConflict) {
-					if (to.hash == null) {
-						conflictType = ConflictType.LOCAL_CHANGED_REMOTE_DELETED;
-					} else {
-						conflictType = ConflictType.LOCAL_AND_REMOTE_CHANGED;
-					}
-				}
-			} else {
-				if (to.hash == null) {
-					log("INFO", path+" was deleted in this update, but it's already missing locally. Skipping");
-					continue;
-				} else if (from.hash != null) {
-					conflictType = ConflictType.LOCAL_DELETED_REMOTE_CHANGED;
+			ConflictType conflictType;
+			while (true) {
+				try {
+					conflictType = verdicts.get(path).get();
+					break;
+				} catch (InterruptedException e) {
+				} catch (ExecutionException e) {
+					verifySvc.shutdownNow();
+					sizeSvc.shutdownNow();
+					if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+					throw new RuntimeException(e);
 				}
 			}
+			if (conflictType == null) {
+				f.skip = true;
+				continue;
+			}
 			if (conflictType != ConflictType.NO_CONFLICT) {
 				AlertOption resp;
 				if (SysProps.DISABLE_RECONCILIATION) {
@@ -374,20 +463,34 @@ public class Agent {
 					moveAside.add(path);
 				}
 			}
-			progressDenom += (to.size == -1 ? 1 : to.size);
+		}
+		for (Future<?> future : sizeFutures) {
+			Futures.getUninterruptibly(future);
+		}
+		long progressDenom = 1;
+		for (FilePlan f : plan.files.values()) {
+			if (f.skip) continue;
+			long size = f.expectedSize();
+			progressDenom += (size == -1 ? 1 : size);
 		}
 		File tmp = new File(".unsup-tmp");
 		if (!tmp.exists()) {
 			tmp.mkdirs();
+		} else {
+			pruneStalePartials(tmp);
 		}
 		final long progressDenomf = progressDenom;
 		AtomicLong progress = new AtomicLong();
 		Runnable updateProgress = () -> PuppetHandler.updateProgress((int)((progress.get()*1000)/progressDenomf));
 		PuppetHandler.updateTitle(bootstrapping ? "Bootstrapping..." : "Updating...", true);
-		ExecutorService svc = Executors.newFixedThreadPool(6);
-		Set<String> files = new HashSet<>();
-		List<Future<?>> futures = new ArrayList<>();
 		Map<FilePlan, DownloadedFile> downloads = new IdentityHashMap<>();
+		HostScheduler svc = new HostScheduler();
+		// attempts are run here so the download threads are free to watch them for stalls
+		ExecutorService hedgeSvc = Executors.newCachedThreadPool();
+		Set<String> files = new HashSet<>();
+		// added to by the archive and pack tasks as they hand back what they couldn't get, so only
+		// ever walked by index
+		List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
 		Runnable updateSubtitle = () -> {
 			if (files.size() == 0) {
 				PuppetHandler.updateSubtitle("Downloading...");
@@ -407,78 +510,194 @@ public class Agent {
 				PuppetHandler.updateSubtitle("Downloading "+sb);
 			}
 		};
+		// hostile hosts see files requested one at a time, at about the pace a person would click
+		long primerSpacing = config.getInt("download.primer_spacing", 500);
+		BiFunction<String, FilePlan, Future<?>> submitFile = (path, f) -> svc.submit(f.url, () -> {
+			FileState to = f.state;
+			synchronized (files) {
+				files.add(path);
+				updateSubtitle.run();
+			}
+			try {
+				DownloadedFile cached = BlobCache.get(to.func, to.hash, to.size, tmp);
+				if (cached != null) {
+					log("INFO", "Found "+path+" in the blob cache");
+					recordDownload(downloads, progress, updateProgress, f, cached);
+					return null;
+				}
+				if (f.patchUrl != null) {
+					DownloadedFile patched = downloadAndApplyPatch(tmp, path, f);
+					if (patched != null) {
+						recordDownload(downloads, progress, updateProgress, f, patched);
+						return null;
+					}
+				}
+				if (f.zipRecords != null) {
+					DownloadedFile rebuilt = downloadChangedZipRecords(tmp, path, f);
+					if (rebuilt != null) {
+						recordDownload(downloads, progress, updateProgress, f, rebuilt);
+						return null;
+					}
+				}
+				if (f.chunks != null) {
+					DownloadedFile assembled = downloadMissingChunks(tmp, path, f);
+					if (assembled != null) {
+						recordDownload(downloads, progress, updateProgress, f, assembled);
+						return null;
+					}
+				}
+				if (f.primerUrl != null) {
+					try (InputStream in = RequestHelper.get(f.primerUrl, f.hostile)) {
+						byte[] buf = new byte[8192];
+						while (true) {
+							if (in.read(buf) == -1) break;
+						}
+					}
+					// rather than holding this thread while we wait, come back for the file later;
+					// the future we return is waited on in turn
+					return svc.submitPaced(f.url, 2000+ThreadLocalRandom.current().nextInt(1200), primerSpacing, () -> {
+						synchronized (files) {
+							files.add(path);
+							updateSubtitle.run();
+						}
+						try {
+							downloadInto(downloads, hedgeSvc, tmp, progress, updateProgress, path, f);
+							return null;
+						} finally {
+							synchronized (files) {
+								files.remove(path);
+								updateSubtitle.run();
+							}
+						}
+					});
+				}
+				downloadInto(downloads, hedgeSvc, tmp, progress, updateProgress, path, f);
+				return null;
+			} finally {
+				synchronized (files) {
+					files.remove(path);
+					updateSubtitle.run();
+				}
+			}
+		});
+		Map<FilePlan, String> paths = new IdentityHashMap<>();
 		for (Map.Entry<String, ? extends FilePlan> en : plan.files.entrySet()) {
+			paths.put(en.getValue(), en.getKey());
+		}
+		// whatever the archive or a pack was meant to bring but didn't is downloaded on its own
+		Consumer<List<FilePlan>> submitLeftovers = fps -> {
+			List<FilePlan> left = new ArrayList<>();
+			synchronized (downloads) {
+				for (FilePlan f : fps) {
+					if (!downloads.containsKey(f)) left.add(f);
+				}
+			}
+			left.sort((a, b) -> Long.compare(b.expectedSize(), a.expectedSize()));
+			for (FilePlan f : left) {
+				futures.add(submitFile.apply(paths.get(f), f));
+			}
+		};
+		// the archive and packs are fetched alongside everything else, rather than before it, so
+		// they don't hold up the largest files
+		Set<FilePlan> bulk = Collections.newSetFromMap(new IdentityHashMap<>());
+		Map<String, List<FilePlan>> archived = plan.archiveUrl == null ? null : wantedFromArchive(plan);
+		if (archived != null) {
+			List<FilePlan> fps = new ArrayList<>();
+			for (List<FilePlan> l : archived.values()) fps.addAll(l);
+			bulk.addAll(fps);
+			String name = plan.archiveUrl.getPath();
+			futures.add(svc.submit(plan.archiveUrl, () -> {
+				synchronized (files) {
+					files.add(name);
+					updateSubtitle.run();
+				}
+				try {
+					extractArchive(plan, archived, tmp, progress, updateProgress, downloads);
+				} finally {
+					synchronized (files) {
+						files.remove(name);
+						updateSubtitle.run();
+					}
+				}
+				submitLeftovers.accept(fps);
+				return null;
+			}));
+		}
+		Map<String, List<FilePlan>> byPack = wantedFromPacks(plan, bulk);
+		for (List<FilePlan> l : byPack.values()) bulk.addAll(l);
+		// start the largest files first, so the update doesn't end up waiting on one big file
+		// that happened to be started last
+		List<Map.Entry<String, ? extends FilePlan>> byLargest = new ArrayList<>(plan.files.entrySet());
+		byLargest.sort((a, b) -> Long.compare(b.getValue().expectedSize(), a.getValue().expectedSize()));
+		for (Map.Entry<String, ? extends FilePlan> en : byLargest) {
 			String path = en.getKey();
 			FilePlan f = en.getValue();
 			if (f.skip) {
 				log("INFO", "Skipping download of "+path);
 				continue;
 			}
-			FileState to = f.state;
-			if (to.size == 0) {
+			if (f.state.size == 0 || bulk.contains(f)) {
 				continue;
 			}
-			futures.add(svc.submit(() -> {
-				synchronized (files) {
-					files.add(path);
-					updateSubtitle.run();
-				}
-				try {
-					if (f.primerUrl != null) {
-						try (InputStream in = RequestHelper.get(f.primerUrl, f.hostile)) {
-							byte[] buf = new byte[8192];
-							while (true) {
-								if (in.read(buf) == -1) break;
-							}
-						}
-						Thread.sleep(2000+ThreadLocalRandom.current().nextInt(1200));
+			futures.add(submitFile.apply(path, f));
+		}
+		// packs only hold small files, so they'd have come last anyway
+		for (List<FilePlan> packed : byPack.values()) {
+			URL pack = packed.get(0).packUrl;
+			String name = pack.getPath();
+			for (List<FilePlan> group : Packfiles.coalesce(packed)) {
+				futures.add(svc.submit(pack, () -> {
+					synchronized (files) {
+						files.add(name);
+						updateSubtitle.run();
 					}
-					DownloadedFile df;
-					long[] contributedProgress = {0};
 					try {
-						log("INFO", "Downloading "+path+" from "+describe(f.url));
-						df = downloadAndCheckHash(tmp, progress, updateProgress, path, f, f.url, to, contributedProgress);
-						if (to.size == -1) progress.incrementAndGet();
-					} catch (Throwable t) {
-						if (f.fallbackUrl != null) {
-							progress.addAndGet(-contributedProgress[0]);
-							contributedProgress[0] = 0;
-							log("WARN", "Failed to download "+path+" from specified URL, trying again from "+describe(f.fallbackUrl), t);
-							df = downloadAndCheckHash(tmp, progress, updateProgress, path, f, f.fallbackUrl, to, contributedProgress);
-							if (to.size == -1) progress.incrementAndGet();
-						} else {
-							throw t;
+						Map<FilePlan, DownloadedFile> got = Packfiles.fetch(pack, group, tmp, l -> {
+							progress.addAndGet(l);
+							updateProgress.run();
+						});
+						log("INFO", "Got "+got.size()+" file"+(got.size() == 1 ? "" : "s")+" from "+describe(pack));
+						synchronized (downloads) {
+							downloads.putAll(got);
+						}
+					} finally {
+						synchronized (files) {
+							files.remove(name);
+							updateSubtitle.run();
 						}
 					}
-					synchronized (downloads) {
-						downloads.put(f, df);
-					}
+					submitLeftovers.accept(group);
 					return null;
-				} finally {
-					synchronized (files) {
-						files.remove(path);
-						updateSubtitle.run();
-					}
-				}
-			}));
+				}));
+			}
 		}
 		svc.shutdown();
-		for (Future<?> future : futures) {
-			while (true) {
-				try {
-					future.get();
-					break;
-				} catch (InterruptedException e) {
-				} catch (ExecutionException e) {
-					for (Future<?> f2 : futures) {
-						try {
-							f2.cancel(false);
-						} catch (Throwable t) {}
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				Future<?> future = futures.get(i);
+				while (true) {
+					try {
+						Object o = future.get();
+						if (o instanceof Future) {
+							// the download was put off until later
+							future = (Future<?>)o;
+							continue;
+						}
+						break;
+					} catch (InterruptedException e) {
+					} catch (ExecutionException e) {
+						synchronized (futures) {
+							Futures.cancelAll(futures);
+						}
+						if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+						throw new RuntimeException(e);
 					}
-					if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
-					throw new RuntimeException(e);
 				}
 			}
+		} finally {
+			// anything still running here lost a race, or belongs to a download that failed
+			hedgeSvc.shutdownNow();
+			svc.shutdownNow();
 		}
 		PuppetHandler.updateTitle(bootstrapping ? "Bootstrapping..." : "Updating...", false);
 		synchronized (dangerMutex) {
@@ -513,14 +732,138 @@ public class Agent {
 					}
 				} else {
 					Files.move(df.file.toPath(), destPath, StandardCopyOption.REPLACE_EXISTING);
+					HashIndex.record(dest, to.func, to.hash);
 				}
 			}
 			state = plan.newState;
 			state.put("current_version", res.theirVersion.toJson());
 			saveState();
+			HashIndex.save();
 		}
 		log("INFO", "Update successful!");
 		updated = true;
+		BlobCache.trim();
+	}
+
+	/**
+	 * Work out which files in the plan are worth getting from its archive. Files the blob cache
+	 * already has aren't wanted, and if that leaves little of the archive worth having, it isn't
+	 * retrieved at all.
+	 * @return the wanted files by their path in the archive, or null if the archive shouldn't be
+	 * 		retrieved
+	 */
+	private static Map<String, List<FilePlan>> wantedFromArchive(UpdatePlan<?> plan) {
+		Map<String, List<FilePlan>> wanted = new HashMap<>();
+		long wantedBytes = 0;
+		for (FilePlan f : plan.files.values()) {
+			if (f.skip || f.state.hash == null || f.state.size <= 0) continue;
+			if (BlobCache.contains(f.state.func, f.state.hash, f.state.size)) continue;
+			wanted.computeIfAbsent(f.state.hash, k -> new ArrayList<>()).add(f);
+			wantedBytes += f.state.size;
+		}
+		if (wanted.isEmpty()) {
+			log("INFO", "Everything we need from the bootstrap archive is in the blob cache, not downloading it");
+			return null;
+		}
+		if (plan.archiveSize != -1 && wantedBytes < plan.archiveSize/2) {
+			log("INFO", "Most of the bootstrap archive isn't needed, downloading files individually instead");
+			return null;
+		}
+		return wanted;
+	}
+
+	/**
+	 * Stream the plan's archive, keeping whichever of its entries are wanted and match what the
+	 * plan expects. Anything that's missing from the archive or doesn't match is left to be
+	 * downloaded individually, as is everything if the archive can't be retrieved.
+	 */
+	private static void extractArchive(UpdatePlan<?> plan, Map<String, List<FilePlan>> wanted, File tmp, AtomicLong progress, Runnable updateProgress, Map<FilePlan, DownloadedFile> downloads) {
+		wanted = new HashMap<>(wanted);
+		log("INFO", "Downloading files in bulk from "+describe(plan.archiveUrl));
+		int extracted = 0;
+		// progress from an entry we haven't finished with yet, to be taken back if it fails
+		long entryProgress = 0;
+		try (InputStream raw = RequestHelper.get(plan.archiveUrl)) {
+			InputStream in = plan.archiveUrl.getPath().endsWith(".gz") ? new GZIPInputStream(raw, 65536) : raw;
+			TarReader tar = new TarReader(in);
+			byte[] buf = new byte[16384];
+			long lastProgressUpdate = 0;
+			TarReader.Entry e;
+			while ((e = tar.next()) != null) {
+				List<FilePlan> fps = e.regular ? wanted.remove(e.name) : null;
+				if (fps == null) continue;
+				FileState to = fps.get(0).state;
+				if (e.size != to.size) {
+					log("WARN", "Entry "+e.name+" in the bootstrap archive is the wrong size, will download it individually");
+					continue;
+				}
+				File out = File.createTempFile("extracted", "", tmp);
+				cleanup.add(out::delete);
+				MessageDigest digest = to.func.createMessageDigest();
+				try (InputStream ein = tar.stream(); OutputStream os = new FileOutputStream(out)) {
+					while (true) {
+						int r = ein.read(buf);
+						if (r == -1) break;
+						os.write(buf, 0, r);
+						digest.update(buf, 0, r);
+						progress.addAndGet(r);
+						entryProgress += r;
+						if (System.nanoTime()-lastProgressUpdate > RequestHelper.ONE_SECOND_IN_NANOS/30) {
+							lastProgressUpdate = System.nanoTime();
+							updateProgress.run();
+						}
+					}
+				}
+				String hash = Bases.bytesToHex(digest.digest());
+				if (!hash.equals(to.hash)) {
+					log("WARN", "Entry "+e.name+" in the bootstrap archive hashed to "+hash+", will download it individually");
+					progress.addAndGet(-entryProgress);
+					entryProgress = 0;
+					out.delete();
+					continue;
+				}
+				entryProgress = 0;
+				BlobCache.put(to.func, hash, out);
+				synchronized (downloads) {
+					downloads.put(fps.get(0), new DownloadedFile(hash, out));
+				}
+				// each file is moved into place, so files with the same content need their own copy
+				for (FilePlan f : fps.subList(1, fps.size())) {
+					File copy = File.createTempFile("extracted", "", tmp);
+					cleanup.add(copy::delete);
+					Files.copy(out.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					synchronized (downloads) {
+						downloads.put(f, new DownloadedFile(hash, copy));
+					}
+					progress.addAndGet(to.size);
+				}
+				extracted += fps.size();
+			}
+		} catch (IOException e) {
+			progress.addAndGet(-entryProgress);
+			log("WARN", "Failed to read the bootstrap archive, will download the rest of the files individually", e);
+		}
+		updateProgress.run();
+		log("INFO", "Got "+extracted+" file"+(extracted == 1 ? "" : "s")+" from the bootstrap archive");
+	}
+
+	/**
+	 * Work out which small files in the plan can be retrieved from a packfile, a few requests per
+	 * pack rather than one request per file.
+	 * @param exclude files that are being retrieved some other way
+	 * @return the files, grouped by the pack they're in
+	 */
+	private static Map<String, List<FilePlan>> wantedFromPacks(UpdatePlan<?> plan, Set<FilePlan> exclude) {
+		Map<String, List<FilePlan>> byPack = new LinkedHashMap<>();
+		for (FilePlan f : plan.files.values()) {
+			if (f.skip || f.packUrl == null || f.state.size <= 0 || exclude.contains(f)) continue;
+			// copied out of the cache later, along with everything else it has
+			if (BlobCache.contains(f.state.func, f.state.hash, f.state.size)) continue;
+			String proto = f.packUrl.getProtocol();
+			if (!("http".equals(proto) || "https".equals(proto))) continue;
+			byPack.computeIfAbsent(f.packUrl.toString(), k -> new ArrayList<>()).add(f);
+		}
+		return byPack;
 	}
 
 	private static String ponder(FileState state) {
@@ -531,11 +874,341 @@ public class Agent {
 		return state.toString();
 	}
 
-	private static DownloadedFile downloadAndCheckHash(File tmp, AtomicLong progress, Runnable updateProgress, String path, FilePlan f, URL url, FileState to, long[] contributedProgress) throws IOException {
+	/**
+	 * Partial downloads are kept between runs so they can be resumed, but if one hasn't been
+	 * touched in a week it's probably for a version we'll never need again.
+	 */
+	private static void pruneStalePartials(File tmp) {
+		File[] files = tmp.listFiles();
+		if (files == null) return;
+		long cutoff = System.currentTimeMillis()-TimeUnit.DAYS.toMillis(7);
+		for (File f : files) {
+			String name = f.getName();
+			if ((name.endsWith(RequestHelper.PARTIAL_SUFFIX) || name.endsWith(RequestHelper.PARTIAL_VALIDATOR_SUFFIX)) && f.lastModified() < cutoff) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Called concurrently from the verification pool; must not touch the puppet.
+	 * @return the kind of conflict between the local file and the plan, or null if the local file
+	 * 		is already in the desired state and doesn't need to be touched
+	 */
+	private static ConflictType checkConsistency(String path, FileState from, FileState to, File dest) throws IOException {
+		if (dest.exists()) {
+			long size = dest.length();
+			if (from.hash == null) {
+				if (to.sizeMatches(size) && to.hash.equals(HashIndex.hash(to.func, dest))) {
+					log("INFO", path+" was created in this update and locally, but the local version matches the update. Skipping");
+					return null;
+				}
+				return ConflictType.LOCAL_AND_REMOTE_CREATED;
+			} else if (from.sizeMatches(size)) {
+				String hash = HashIndex.hash(from.func, dest);
+				if (from.hash.equals(hash)) {
+					log("INFO", path+" matches the expected from hash");
+					return ConflictType.NO_CONFLICT;
+				} else if (to.sizeMatches(size) && to.hash.equals(from.func == to.func ? hash : HashIndex.hash(to.func, dest))) {
+					log("INFO", path+" matches the expected to hash, so has already been updated locally. Skipping");
+					return null;
+				} else {
+					log("INFO", "CONFLICT: "+path+" doesn't match the expected from hash ("+hash+" != "+from.hash+")");
+				}
+			} else if (to.sizeMatches(size) && to.hash.equals(HashIndex.hash(to.func, dest))) {
+				log("INFO", path+" matches the expected to hash, so has already been updated locally. Skipping");
+				return null;
+			} else {
+				log("INFO", "CONFLICT: "+path+" doesn't match the expected from size ("+size+" != "+from.size+")");
+			}
+			return to.hash == null ? ConflictType.LOCAL_CHANGED_REMOTE_DELETED : ConflictType.LOCAL_AND_REMOTE_CHANGED;
+		} else {
+			if (to.hash == null) {
+				log("INFO", path+" was deleted in this update, but it's already missing locally. Skipping");
+				return null;
+			} else if (from.hash != null) {
+				return ConflictType.LOCAL_DELETED_REMOTE_CHANGED;
+			}
+			return ConflictType.NO_CONFLICT;
+		}
+	}
+
+	/**
+	 * Try to bring the given file up to date by patching the local copy.
+	 * @return the patched file, or null if it couldn't be patched and needs to be downloaded
+	 */
+	private static DownloadedFile downloadAndApplyPatch(File tmp, String path, FilePlan f) {
+		File src = new File(path);
+		FileState to = f.state;
+		File out = null;
+		try {
+			if (!hasPatchBase(src, f)) return null;
+			log("INFO", "Patching "+path+" with a delta from "+describe(f.patchUrl));
+			out = File.createTempFile("patched", "", tmp);
+			File fout = out;
+			cleanup.add(fout::delete);
+			MessageDigest digest = to.func.createMessageDigest();
+			// the manifest says how big both the patch and its output are; hold the server to that
+			try (InputStream in = f.patchSize > 0 ? RequestHelper.get(f.patchUrl, f.hostile, f.patchSize) : RequestHelper.get(f.patchUrl, f.hostile);
+					OutputStream os = new DigestOutputStream(new FileOutputStream(out), digest)) {
+				Delta.apply(src, in, os, to.size);
+			}
+			String hash = Bases.bytesToHex(digest.digest());
+			if (!hash.equals(to.hash)) {
+				log("WARN", "Patched "+path+" hashed to "+hash+", but we expected "+to.hash+". Downloading it in full");
+				out.delete();
+				return null;
+			}
+			BlobCache.put(to.func, hash, out);
+			return new DownloadedFile(hash, out);
+		} catch (IOException e) {
+			log("WARN", "Failed to patch "+path+", downloading it in full", e);
+			if (out != null) out.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Try to bring the given zip up to date by retrieving only the records of it that changed.
+	 * @return the rebuilt file, or null if it couldn't be rebuilt and needs to be downloaded
+	 */
+	private static DownloadedFile downloadChangedZipRecords(File tmp, String path, FilePlan f) {
+		File src = new File(path);
+		String proto = f.url.getProtocol();
+		if (f.hostile || !("http".equals(proto) || "https".equals(proto))) return null;
+		try {
+			if (!hasPatchBase(src, f)) return null;
+			DownloadedFile df = ZipRebuilder.rebuild(src, f.url, f.zipRecords, f.state, tmp);
+			// already verified against the state's hash
+			if (df != null) BlobCache.put(f.state.func, df.hash, df.file);
+			return df;
+		} catch (IOException e) {
+			log("WARN", "Failed to retrieve only the changed parts of "+path+", downloading it in full", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Try to assemble the given file out of the chunks it shares with whatever version of it is
+	 * on disk, retrieving only the chunks that aren't.
+	 * @return the assembled file, or null if it couldn't be assembled and needs to be downloaded
+	 */
+	private static DownloadedFile downloadMissingChunks(File tmp, String path, FilePlan f) {
+		File src = new File(path);
+		// with nothing to reuse, one request for the whole blob beats hundreds for its chunks
+		if (f.hostile || !src.isFile()) return null;
+		try {
+			DownloadedFile df = ChunkAssembler.assemble(src, f.url, f.chunkSource, f.chunks, f.state, tmp);
+			// already verified against the state's hash
+			if (df != null) BlobCache.put(f.state.func, df.hash, df.file);
+			return df;
+		} catch (IOException e) {
+			log("WARN", "Failed to assemble "+path+" from chunks, downloading it in full", e);
+			return null;
+		}
+	}
+
+	private static boolean hasPatchBase(File src, FilePlan f) throws IOException {
+		// the consistency check may have been overruled by the user, so make sure we have the right base
+		FileState from = f.patchFrom;
+		return src.isFile() && from.sizeMatches(src.length()) && from.hash.equals(HashIndex.hash(from.func, src));
+	}
+
+	/**
+	 * Note that the given file was retrieved some way that didn't report its progress as it went,
+	 * and count all of it at once.
+	 */
+	private static void recordDownload(Map<FilePlan, DownloadedFile> downloads, AtomicLong progress, Runnable updateProgress, FilePlan f, DownloadedFile df) {
+		// the same as it counts for in the progress denominator
+		long size = f.expectedSize();
+		progress.addAndGet(size == -1 ? 1 : size);
+		updateProgress.run();
+		synchronized (downloads) {
+			downloads.put(f, df);
+		}
+	}
+
+	private static void downloadInto(Map<FilePlan, DownloadedFile> downloads, ExecutorService hedgeSvc, File tmp, AtomicLong progress, Runnable updateProgress, String path, FilePlan f) throws IOException, InterruptedException {
+		DownloadedFile df = downloadHedged(hedgeSvc, tmp, progress, updateProgress, path, f, f.state);
+		if (f.expectedSize() == -1) progress.incrementAndGet();
+		synchronized (downloads) {
+			downloads.put(f, df);
+		}
+	}
+
+	private static final long STALL_CHECK_INTERVAL_MILLIS = 5000;
+	
+	private static class Attempt {
+		final URL url;
+		final CancellationSignal cancel = new CancellationSignal();
+		final AtomicLong bytes = new AtomicLong();
+		final long started = System.nanoTime();
+		long bytesAtLastCheck = 0;
+		final boolean gzipped;
+		/** whether there's a URL on another host to try if this one's host is down */
+		final boolean canFailOver;
+		
+		Attempt(URL url, boolean gzipped, boolean canFailOver) {
+			this.url = url;
+			this.gzipped = gzipped;
+			this.canFailOver = canFailOver;
+		}
+	}
+	
+	/**
+	 * Download the given file from its URL, watching the transfer rate. If it stalls, the next
+	 * URL (a mirror, or the fallback) is raced against it, and whichever finishes first is used.
+	 */
+	private static DownloadedFile downloadHedged(ExecutorService hedgeSvc, File tmp, AtomicLong progress, Runnable updateProgress, String path, FilePlan f, FileState to) throws IOException, InterruptedException {
+		Set<URL> urlSet = new LinkedHashSet<>();
+		urlSet.add(f.url);
+		urlSet.addAll(f.mirrorUrls);
+		if (f.fallbackUrl != null) urlSet.add(f.fallbackUrl);
+		List<URL> urls = new ArrayList<>(urlSet);
+		boolean haveGzip = f.gzipUrl != null && to.size != -1;
+		if (haveGzip) urls.add(0, f.gzipUrl);
+		long stallRate = config.getInt("download.stall_rate", 32)*1024L;
+		Map<Future<DownloadedFile>, Attempt> running = new HashMap<>();
+		// while attempts are racing, only the one that's furthest along counts towards progress
+		long[] contributed = {0};
+		boolean[] settled = {false};
+		long expected = f.expectedSize();
+		Runnable syncProgress = () -> {
+			if (expected == -1) return;
+			synchronized (contributed) {
+				if (settled[0]) return;
+				long best = 0;
+				synchronized (running) {
+					for (Attempt a : running.values()) {
+						best = Math.max(best, a.bytes.get());
+					}
+				}
+				// a size hint may be wrong
+				best = Math.min(best, expected);
+				progress.addAndGet(best-contributed[0]);
+				contributed[0] = best;
+			}
+		};
+		CompletionService<DownloadedFile> cs = new ExecutorCompletionService<>(hedgeSvc);
+		Attempt newest = null;
+		int next = 0;
+		Throwable failure = null;
+		try {
+			while (true) {
+				if (newest == null) {
+					preferLiveHost(urls, next, haveGzip);
+					// only the first URL can be the gzip
+					URL url = urls.get(next);
+					boolean canFailOver = false;
+					for (URL u : urls.subList(next+1, urls.size())) {
+						if (!Objects.equals(u.getHost(), url.getHost()) && !HostScheduler.isDown(u.getHost())) {
+							canFailOver = true;
+							break;
+						}
+					}
+					Attempt a = new Attempt(url, next == 0 && haveGzip, canFailOver);
+					next++;
+					log("INFO", "Downloading "+path+" from "+describe(a.url));
+					synchronized (running) {
+						running.put(cs.submit(() -> downloadAndCheckHash(tmp, a, syncProgress, updateProgress, path, f, to)), a);
+					}
+					newest = a;
+				}
+				Future<DownloadedFile> done = cs.poll(STALL_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (done == null) {
+					long b = newest.bytes.get();
+					if (stallRate > 0 && next < urls.size() && b-newest.bytesAtLastCheck < (stallRate*STALL_CHECK_INTERVAL_MILLIS)/1000) {
+						log("WARN", "Download of "+path+" from "+describe(newest.url)+" has stalled, racing it against "+describe(urls.get(next)));
+						Mirrors.recordFailure(newest.url);
+						newest = null;
+					} else {
+						newest.bytesAtLastCheck = b;
+					}
+					continue;
+				}
+				Attempt a;
+				boolean others;
+				synchronized (running) {
+					a = running.remove(done);
+					others = !running.isEmpty();
+				}
+				try {
+					DownloadedFile df = done.get();
+					Mirrors.recordSuccess(a.url, a.bytes.get(), System.nanoTime()-a.started);
+					HostScheduler.recordThroughput(a.url.getHost(), a.bytes.get(), System.nanoTime()-a.started);
+					if (others) log("INFO", "Got "+path+" from "+describe(a.url)+" first, abandoning the other attempt");
+					if (expected != -1) {
+						synchronized (contributed) {
+							settled[0] = true;
+							progress.addAndGet(expected-contributed[0]);
+						}
+						updateProgress.run();
+					}
+					return df;
+				} catch (ExecutionException e) {
+					if (failure == null) failure = e.getCause();
+					Mirrors.recordFailure(a.url);
+					syncProgress.run();
+					if (next < urls.size()) {
+						if (a == newest) {
+							log("WARN", "Failed to download "+path+" from "+describe(a.url)+", trying again from "+describe(urls.get(next)), e.getCause());
+							newest = null;
+						}
+					} else if (!others) {
+						if (failure instanceof IOException) throw (IOException)failure;
+						if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+						if (failure instanceof Error) throw (Error)failure;
+						throw new IOException(failure);
+					} else {
+						log("WARN", "Failed to download "+path+" from "+describe(a.url)+", still waiting on the other attempt", e.getCause());
+					}
+				}
+			}
+		} finally {
+			synchronized (running) {
+				for (Map.Entry<Future<DownloadedFile>, Attempt> en : running.entrySet()) {
+					en.getValue().cancel.cancel();
+					en.getKey().cancel(true);
+				}
+				running.clear();
+			}
+		}
+	}
+	
+	/**
+	 * If the URL at the given index is on a host that's down, swap in the next one that isn't, so
+	 * files fail over to a mirror or the fallback without having to find out for themselves.
+	 */
+	private static void preferLiveHost(List<URL> urls, int idx, boolean haveGzip) {
+		// the gzip URL has to stay first
+		if (idx == 0 && haveGzip) return;
+		if (!HostScheduler.isDown(urls.get(idx).getHost())) return;
+		for (int i = idx+1; i < urls.size(); i++) {
+			if (!HostScheduler.isDown(urls.get(i).getHost())) {
+				urls.add(idx, urls.remove(i));
+				return;
+			}
+		}
+	}
+	
+	private static DownloadedFile downloadAndCheckHash(File tmp, Attempt attempt, Runnable syncProgress, Runnable updateProgress, String path, FilePlan f, FileState to) throws IOException {
+		URL url = attempt.url;
+		RequestHelper.setCanFailOver(attempt.canFailOver);
+		try {
+			return downloadAndCheckHash(url, tmp, attempt, syncProgress, updateProgress, path, f, to);
+		} finally {
+			RequestHelper.setCanFailOver(false);
+		}
+	}
+	
+	private static DownloadedFile downloadAndCheckHash(URL url, File tmp, Attempt attempt, Runnable syncProgress, Runnable updateProgress, String path, FilePlan f, FileState to) throws IOException {
 		return RequestHelper.withRetries(3, () -> {
-			DownloadedFile df = RequestHelper.downloadToFile(url, tmp, to.size, to.size == -1 ? l -> {} : l -> {contributedProgress[0]+=l;progress.addAndGet(l);},
-					updateProgress, to.func, f.hostile);
+			DownloadedFile df = RequestHelper.downloadToFile(url, tmp, to.size, l -> {attempt.bytes.addAndGet(l);syncProgress.run();},
+					updateProgress, to.func, to.hash, f.hostile, attempt.gzipped, attempt.cancel);
 			if (!df.hash.equals(to.hash)) {
+				// the mismatched file is gone, so the next try starts over
+				attempt.bytes.set(0);
+				syncProgress.run();
 				throw new Retry("Hash mismatch on downloaded file for "+path+" from "+url+" - expected "+to.hash+", got "+df.hash,
 						IOException::new);
 			}
@@ -719,14 +1392,38 @@ public class Agent {
 		return config;
 	}
 	
+	private static void handOver() {
+		if (standalone) {
+			log("INFO", "Ran in standalone mode, no program will be started.");
+			log("INFO", "It is recommended you use unsup as a Java agent via -javaagent:unsup.jar to piggyback on another program's launch.");
+		} else {
+			log("INFO", "All done, handing over control.");
+			// poke the Unsup class so it loads and finalizes all of its values
+			if (Unsup.SOURCE_VERSION != null) Unsup.SOURCE_VERSION.toString();
+			String cmd = System.getProperty("sun.java.command");
+			if ("org.multimc.EntryPoint".equals(cmd)) {
+				// we actually run before MultiMC's Java-side launcher code, so print a
+				// blank line to put "Using onesix launcher." in an island like it's
+				// supposed to be
+				System.out.println();
+			}
+		}
+	}
+	
 	private static void cleanup() {
-		for (ExceptableRunnable er : cleanup) {
+		List<ExceptableRunnable> tasks;
+		synchronized (cleanup) {
+			tasks = new ArrayList<>(cleanup);
+		}
+		for (ExceptableRunnable er : tasks) {
 			try {
 				er.run();
 			} catch (Throwable t) {}
 		}
-		okhttp.dispatcher().executorService().shutdown();
-		okhttp.connectionPool().evictAll();
+		if (okhttpCreated) {
+			OkHttp.client.dispatcher().executorService().shutdown();
+			OkHttp.client.connectionPool().evictAll();
+		}
 		cleanup = null;
 	}
 	
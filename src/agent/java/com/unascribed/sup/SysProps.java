@@ -14,6 +14,10 @@ public class SysProps {
 	 * Assume yes to all overwrite/reconciliation queries.
 	 */
 	public static final boolean DISABLE_RECONCILIATION = Boolean.getBoolean("unsup.disableReconciliation");
+	/**
+	 * Check for updates even if the last check was within check_interval.
+	 */
+	public static final boolean FORCE_CHECK = Boolean.getBoolean("unsup.forceCheck");
 	
 	
 	/**
@@ -0,0 +1,239 @@
+package com.unascribed.sup.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.grack.nanojson.JsonParserException;
+import com.grack.nanojson.JsonReader;
+
+/**
+ * The contents of a bootstrap or update manifest, whichever form it was retrieved in.
+ */
+public class FileManifest {
+
+	public static final String BOOTSTRAP = "bootstrap";
+	public static final String UPDATE = "update";
+
+	public String flavor;
+	/** the unsup_manifest value of a JSON manifest, such as bootstrap-1 */
+	public String unsupManifest;
+	public HashFunction hashFunction;
+	/** bootstrap manifests only */
+	public Version version;
+	/** bootstrap manifests only */
+	public String archive;
+	public long archiveSize = -1;
+	/** update manifests only */
+	public String pack;
+	/** the files array of a bootstrap manifest, or the changes array of an update manifest */
+	public List<Entry> entries = new ArrayList<>();
+
+	public static class Entry {
+		public String path;
+		/** null if the file is eligible for every env */
+		public List<String> envs;
+		/** null if the file is eligible for every flavor */
+		public List<String> flavors;
+		/** update manifests only */
+		public String fromHash;
+		public long fromSize = -1;
+		/** the state the file should end up in; the to_hash and to_size of an update */
+		public String hash;
+		public long size = -1;
+		public String url;
+		public List<String> mirrors;
+		public long patchSize = -1;
+		public long[][] zipRecords;
+		public String[] chunkHashes;
+		public long[] chunkSizes;
+		public long gzipSize = -1;
+		public long packOffset = -1;
+	}
+
+	/**
+	 * Parse a JSON manifest as it streams in, building entries as they're read rather than
+	 * building a tree of the whole document first.
+	 */
+	public static FileManifest readJson(InputStream in, String flavor, String defaultHashFunction) throws IOException {
+		try {
+			return readJson(JsonReader.from(in), flavor, defaultHashFunction);
+		} catch (JsonParserException e) {
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IOException("Failed to parse manifest as JSON: "+e.getMessage()+" (at line "+e.getLinePosition()+" column "+e.getCharPosition()+")");
+		}
+	}
+
+	private static FileManifest readJson(JsonReader r, String flavor, String defaultHashFunction) throws IOException, JsonParserException {
+		FileManifest fm = new FileManifest();
+		fm.flavor = flavor;
+		boolean update = UPDATE.equals(flavor);
+		String arrName = update ? "changes" : "files";
+		String hashFunction = defaultHashFunction;
+		boolean sawEntries = false;
+		if (r.current() != JsonReader.Type.OBJECT) throw new IOException("Manifest is not an object");
+		r.object();
+		while (r.next()) {
+			String key = r.key();
+			if (key.equals(arrName)) {
+				if (r.current() != JsonReader.Type.ARRAY) throw new IOException(arrName+" is not an array");
+				sawEntries = true;
+				r.array();
+				while (r.next()) {
+					fm.entries.add(readEntry(r, update, "entry "+fm.entries.size()+" in "+arrName+" array"));
+				}
+				continue;
+			}
+			switch (key) {
+				case "unsup_manifest": fm.unsupManifest = string(r); break;
+				case "hash_function": {
+					String s = string(r);
+					if (s != null) hashFunction = s;
+					break;
+				}
+				case "version": if (update) skip(r); else fm.version = readVersion(r); break;
+				case "archive": if (update) skip(r); else fm.archive = string(r); break;
+				case "archive_size": if (update) skip(r); else fm.archiveSize = longVal(r); break;
+				case "pack": if (update) fm.pack = string(r); else skip(r); break;
+				default: skip(r); break;
+			}
+		}
+		if (fm.unsupManifest == null) throw new IOException("unsup_manifest key is missing");
+		if (!sawEntries) throw new IOException("Manifest is missing "+arrName+" array");
+		fm.hashFunction = HashFunction.byName(hashFunction);
+		return fm;
+	}
+
+	private static Entry readEntry(JsonReader r, boolean update, String what) throws IOException, JsonParserException {
+		if (r.current() != JsonReader.Type.OBJECT) throw new IOException(what+" is not an object");
+		Entry e = new Entry();
+		r.object();
+		while (r.next()) {
+			String key = r.key();
+			switch (key) {
+				case "path": e.path = string(r); break;
+				case "envs": e.envs = strings(r, what, key); break;
+				case "flavors": e.flavors = strings(r, what, key); break;
+				case "from_hash": e.fromHash = string(r); break;
+				case "from_size": e.fromSize = longVal(r); break;
+				case "hash": case "to_hash":
+					if (key.equals(update ? "to_hash" : "hash")) e.hash = string(r);
+					else skip(r);
+					break;
+				case "size": case "to_size":
+					if (key.equals(update ? "to_size" : "size")) e.size = longVal(r);
+					else skip(r);
+					break;
+				case "url": e.url = string(r); break;
+				case "mirrors": e.mirrors = strings(r, what, key); break;
+				case "patch_size": e.patchSize = longVal(r); break;
+				case "zip_records": {
+					if (isNull(r)) break;
+					List<long[]> records = new ArrayList<>();
+					r.array();
+					while (r.next()) {
+						String malformed = what+" has a malformed entry in its zip_records array";
+						if (r.current() != JsonReader.Type.ARRAY) throw new IOException(malformed);
+						r.array();
+						if (!r.next()) throw new IOException(malformed);
+						long ofs = r.longVal();
+						if (!r.next()) throw new IOException(malformed);
+						records.add(new long[] {ofs, r.longVal()});
+						if (r.next()) throw new IOException(malformed);
+					}
+					e.zipRecords = records.toArray(new long[records.size()][]);
+					break;
+				}
+				case "chunks": {
+					if (isNull(r)) break;
+					List<String> hashes = new ArrayList<>();
+					List<Long> sizes = new ArrayList<>();
+					r.array();
+					while (r.next()) {
+						String malformed = what+" has a malformed entry in its chunks array";
+						if (r.current() != JsonReader.Type.ARRAY) throw new IOException(malformed);
+						r.array();
+						if (!r.next()) throw new IOException(malformed);
+						hashes.add(r.string());
+						if (!r.next()) throw new IOException(malformed);
+						sizes.add(r.longVal());
+						if (r.next()) throw new IOException(malformed);
+					}
+					e.chunkHashes = hashes.toArray(new String[hashes.size()]);
+					e.chunkSizes = new long[sizes.size()];
+					for (int i = 0; i < e.chunkSizes.length; i++) e.chunkSizes[i] = sizes.get(i);
+					break;
+				}
+				case "gzip_size": e.gzipSize = longVal(r); break;
+				case "pack_offset": e.packOffset = longVal(r); break;
+				default: skip(r); break;
+			}
+		}
+		return e;
+	}
+
+	private static Version readVersion(JsonReader r) throws IOException, JsonParserException {
+		if (isNull(r)) return null;
+		if (r.current() != JsonReader.Type.OBJECT) throw new IOException("version is not an object");
+		String name = null;
+		int code = 0;
+		r.object();
+		while (r.next()) {
+			switch (r.key()) {
+				case "name": name = string(r); break;
+				case "code": code = r.intVal(); break;
+				default: skip(r); break;
+			}
+		}
+		return new Version(name, code);
+	}
+
+	private static boolean isNull(JsonReader r) throws JsonParserException {
+		if (r.current() == JsonReader.Type.NULL) {
+			r.nul();
+			return true;
+		}
+		return false;
+	}
+
+	private static String string(JsonReader r) throws JsonParserException {
+		if (isNull(r)) return null;
+		return r.string();
+	}
+
+	private static long longVal(JsonReader r) throws JsonParserException {
+		if (isNull(r)) return -1;
+		return r.longVal();
+	}
+
+	private static List<String> strings(JsonReader r, String what, String name) throws IOException, JsonParserException {
+		if (isNull(r)) return null;
+		if (r.current() != JsonReader.Type.ARRAY) throw new IOException(name+" of "+what+" is not an array");
+		List<String> out = new ArrayList<>();
+		r.array();
+		while (r.next()) {
+			if (r.current() != JsonReader.Type.STRING) throw new IOException("Entry in "+name+" array of "+what+" is not a string");
+			out.add(r.string());
+		}
+		return out;
+	}
+
+	private static void skip(JsonReader r) throws JsonParserException {
+		switch (r.current()) {
+			case OBJECT:
+				r.object();
+				while (r.next()) skip(r);
+				break;
+			case ARRAY:
+				r.array();
+				while (r.next()) skip(r);
+				break;
+			case STRING: r.string(); break;
+			case NUMBER: r.number(); break;
+			case BOOLEAN: r.bool(); break;
+			case NULL: r.nul(); break;
+		}
+	}
+
+}
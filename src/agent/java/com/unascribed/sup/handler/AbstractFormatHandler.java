@@ -1,6 +1,7 @@
 package com.unascribed.sup.handler;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -22,10 +23,68 @@ public abstract class AbstractFormatHandler {
 	public static class FilePlan {
 		public FileState state;
 		public URL url;
+		/**
+		 * Other places the file can be retrieved from, best first, to be tried after {@link #url}
+		 * and before {@link #fallbackUrl}.
+		 */
+		public List<URL> mirrorUrls = new ArrayList<>();
 		public URL fallbackUrl;
+		/**
+		 * A gzip of the file, to be tried before anything else if it's available.
+		 */
+		public URL gzipUrl;
 		public URL primerUrl;
+		/**
+		 * The state the local file needs to be in for {@link #patchUrl} or {@link #zipRecords} to
+		 * be of any use.
+		 */
+		public FileState patchFrom;
+		/**
+		 * A delta that turns the local file into the desired state, to be tried before
+		 * downloading the file in full.
+		 */
+		public URL patchUrl;
+		/**
+		 * The size of {@link #patchUrl}, or -1 if unknown.
+		 */
+		public long patchSize = -1;
+		/**
+		 * The length and CRC32 of each raw record of the desired zip, so records that are
+		 * already in the local file don't need to be downloaded.
+		 */
+		public long[][] zipRecords;
+		/**
+		 * The content-defined chunks making up the desired file, in order, so chunks that are
+		 * already somewhere in the local file don't need to be downloaded. Unlike a patch, this
+		 * doesn't care what state the local file is in.
+		 */
+		public List<FileState> chunks;
+		/**
+		 * Where {@link #chunks} can be retrieved from.
+		 */
+		public URL chunkSource;
+		/**
+		 * A packfile containing the desired file at {@link #packOffset}, from which it can be
+		 * retrieved alongside other small files instead of on its own.
+		 */
+		public URL packUrl;
+		public long packOffset = -1;
 		public boolean hostile;
 		public boolean skip = false;
+		/**
+		 * What the server said the file's size would be, for files whose state doesn't specify a
+		 * size. Only used for scheduling and progress, as it's not trustworthy enough to verify
+		 * against.
+		 */
+		public long sizeHint = -1;
+		
+		/**
+		 * @return the size the file should have, the size the server says it has if that's not
+		 * 		known, or -1 if neither are known
+		 */
+		public long expectedSize() {
+			return state.size == -1 ? sizeHint : state.size;
+		}
 	}
 	
 	public static class FileState {
@@ -85,6 +144,12 @@ public abstract class AbstractFormatHandler {
 		public final Map<String, F> files = NullRejectingMap.create();
 		public final Map<String, FileState> expectedState = NullRejectingMap.create();
 		public final JsonObject newState;
+		/**
+		 * A tar of blobs named by their hash, optionally gzipped, that can be streamed in one go
+		 * instead of downloading each file in the plan individually.
+		 */
+		public URL archiveUrl;
+		public long archiveSize = -1;
 		
 		public UpdatePlan(boolean isBootstrap, JsonObject newState) {
 			this.isBootstrap = isBootstrap;
@@ -3,9 +3,17 @@ package com.unascribed.sup.handler;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.IntPredicate;
 import com.grack.nanojson.JsonArray;
 import com.grack.nanojson.JsonObject;
@@ -16,17 +24,33 @@ import com.unascribed.sup.SysProps;
 import com.unascribed.sup.PuppetHandler.AlertMessageType;
 import com.unascribed.sup.PuppetHandler.AlertOption;
 import com.unascribed.sup.PuppetHandler.AlertOptionType;
+import com.unascribed.sup.data.FileManifest;
 import com.unascribed.sup.data.FlavorGroup;
 import com.unascribed.sup.data.HashFunction;
 import com.unascribed.sup.data.Version;
 import com.unascribed.sup.data.FlavorGroup.FlavorChoice;
+import com.unascribed.sup.pieces.BinaryManifest;
+import com.unascribed.sup.pieces.Chunker;
 import com.unascribed.sup.util.RequestHelper;
+import com.unascribed.sup.util.RequestHelper.MissingSignatureException;
+import com.unascribed.sup.util.Futures;
 import com.unascribed.sup.util.IntPredicates;
 import com.unascribed.sup.util.Iterables;
+import com.unascribed.sup.util.Mirrors;
 
 public class NativeHandler extends AbstractFormatHandler {
 	
 	protected static final String DEFAULT_HASH_FUNCTION = HashFunction.SHA2_256.name;
+	
+	/**
+	 * How many update manifests may be in flight at once.
+	 */
+	private static final int MANIFEST_FETCH_WINDOW = 8;
+	/**
+	 * How many update manifests we reckon retrieving one checkpoint is worth, when deciding
+	 * whether jumping to a checkpoint is cheaper than collapsing updates.
+	 */
+	private static final int CHECKPOINT_COST = 8;
 
 	private static class FileToDownloadWithCode extends FilePlan {
 		int code;
@@ -34,15 +58,40 @@ public class NativeHandler extends AbstractFormatHandler {
 	
 	public static CheckResult check(URL src) throws IOException, JsonParserException {
 		Agent.log("INFO", "Loading unsup-format manifest from "+src);
+		Version ourVersion = Version.fromJson(Agent.state.getObject("current_version"));
+		ExecutorService svc = Executors.newFixedThreadPool(MANIFEST_FETCH_WINDOW);
+		try {
+			return check(src, ourVersion, svc);
+		} finally {
+			svc.shutdownNow();
+		}
+	}
+	
+	private static CheckResult check(URL src, Version ourVersion, ExecutorService svc) throws IOException, JsonParserException {
+		Future<FileManifest> bootstrapFuture = null;
+		if (ourVersion == null) {
+			// we're definitely going to need this, so start retrieving it while we look at the root
+			// manifest. we don't know yet if there's a binary form or a shard for our env, and
+			// guessing wrong costs extra requests, so start with the form that's always there
+			bootstrapFuture = svc.submit(() -> loadFileManifest(src, "bootstrap", FileManifest.BOOTSTRAP, false, null));
+		}
 		JsonObject manifest = RequestHelper.loadJson(src, 32*K, new URL(src, "manifest.sig"));
 		checkManifestFlavor(manifest, "root", IntPredicates.equals(1));
-		Version ourVersion = Version.fromJson(Agent.state.getObject("current_version"));
+		boolean binary = manifest.getBoolean("binary_manifests", false);
+		JsonArray envShards = manifest.getArray("env_shards");
+		String shard = Agent.detectedEnv != null && envShards != null && Iterables.contains(envShards, Agent.detectedEnv) ? Agent.detectedEnv : null;
+		if (bootstrapFuture != null && (binary || shard != null) && !bootstrapFuture.isDone()) {
+			// there's a smaller form to be had, and what we've got so far isn't worth finishing
+			bootstrapFuture.cancel(true);
+			bootstrapFuture = svc.submit(() -> loadFileManifest(src, "bootstrap", FileManifest.BOOTSTRAP, binary, shard));
+		}
 		if (!manifest.containsKey("versions")) throw new IOException("Manifest is missing versions field");
 		Version theirVersion = Version.fromJson(manifest.getObject("versions").getObject("current"));
 		if (theirVersion == null) throw new IOException("Manifest is missing current version field");
 		if (System.getProperty("unsup.debug.overrideRemoteVersionCode") != null) {
 			theirVersion = new Version(theirVersion.name, Integer.getInteger("unsup.debug.overrideRemoteVersionCode", theirVersion.code));
 		}
+		int[] checkpoints = parseCheckpoints(manifest.getArray("checkpoints"), theirVersion.code);
 		JsonObject newState = new JsonObject(Agent.state);
 		JsonArray ourFlavors = Agent.state.getArray("flavors");
 		if (ourFlavors == null && Agent.state.containsKey("flavor")) {
@@ -137,60 +186,66 @@ public class NativeHandler extends AbstractFormatHandler {
 				ourFlavors = handleFlavorSelection(ourFlavors, unpickedGroups, newState);
 			}
 		}
+		if (ourVersion == null || theirVersion.code > ourVersion.code) {
+			// we're going to be downloading things, so figure out where from
+			Mirrors.init(src, manifest.getArray("mirrors"), svc);
+		}
 		UpdatePlan<FileToDownloadWithCode> bootstrapPlan = null;
 		boolean bootstrapping = false;
 		if (ourVersion == null) {
 			bootstrapping = true;
 			Agent.log("INFO", "Update available! We have nothing, they have "+theirVersion);
-			JsonObject bootstrap = null;
+			FileManifest bootstrap = null;
 			try {
-				bootstrap = RequestHelper.loadJson(new URL(src, "bootstrap.json"), 2*M, new URL(src, "bootstrap.sig"));
+				bootstrap = Futures.getUninterruptibly(bootstrapFuture);
 			} catch (FileNotFoundException e) {
-				Agent.log("INFO", "Bootstrap manifest missing, will have to retrieve and collapse every update");
+				Agent.log("INFO", "Bootstrap manifest missing");
+			}
+			int newestCheckpoint = checkpoints.length == 0 ? -1 : checkpoints[checkpoints.length-1];
+			if (newestCheckpoint != -1 && (bootstrap == null || (bootstrap.version != null && bootstrap.version.code < newestCheckpoint))) {
+				// a checkpoint is a bootstrap manifest for an older version, so it's just as good
+				Agent.log("INFO", "Checkpoint "+newestCheckpoint+" is newer than the bootstrap manifest, starting from it instead");
+				try {
+					bootstrap = loadFileManifest(src, "checkpoints/"+newestCheckpoint, FileManifest.BOOTSTRAP, binary, shard);
+				} catch (FileNotFoundException | MissingSignatureException e) {
+					// the signing tooling may not know about checkpoints; a bad signature is still fatal
+					Agent.log("WARN", "Can't start from checkpoint "+newestCheckpoint+", as it's missing or isn't signed");
+				}
+			}
+			if (bootstrap == null) {
+				Agent.log("INFO", "No usable bootstrap manifest or checkpoints, will have to retrieve and collapse every update");
 			}
 			if (bootstrap != null) {
-				checkManifestFlavor(bootstrap, "bootstrap", IntPredicates.equals(1));
-				Version bootstrapVersion = Version.fromJson(bootstrap.getObject("version"));
+				Version bootstrapVersion = bootstrap.version;
 				if (bootstrapVersion == null) throw new IOException("Bootstrap manifest is missing version field");
 				if (bootstrapVersion.code < theirVersion.code) {
 					Agent.log("WARN", "Bootstrap manifest version "+bootstrapVersion+" is older than root manifest version "+theirVersion+", will have to perform extra updates");
 				}
-				HashFunction func = HashFunction.byName(bootstrap.getString("hash_function", DEFAULT_HASH_FUNCTION));
+				HashFunction func = bootstrap.hashFunction;
 				PuppetHandler.updateTitle("Bootstrapping...", false);
 				bootstrapPlan = new UpdatePlan<>(true, newState);
-				for (Object o : bootstrap.getArray("files")) {
-					if (!(o instanceof JsonObject)) throw new IOException("Entry "+o+" in files array is not an object");
-					JsonObject file = (JsonObject)o;
-					String path = file.getString("path");
-					if (path == null) throw new IOException("Entry in files array is missing path");
-					String hash = file.getString("hash");
-					if (hash == null) throw new IOException(path+" in files array is missing hash");
-					if (hash.length() != func.sizeInHexChars)  throw new IOException(path+" in files array hash "+hash+" is wrong length ("+hash.length()+" != "+func.sizeInHexChars+")");
-					long size = file.getLong("size", -1);
-					if (size < 0) throw new IOException(path+" in files array has invalid or missing size");
-					if (size == 0 && !hash.equals(func.emptyHash)) throw new IOException(path+" in files array is empty file, but hash isn't the empty hash ("+hash+" != "+func.emptyHash+")");
-					String urlStr = RequestHelper.checkSchemeMismatch(src, file.getString("url"));
-					JsonArray envs = file.getArray("envs");
-					if (!Iterables.contains(envs, Agent.detectedEnv)) {
+				if (bootstrap.archive != null) {
+					bootstrapPlan.archiveUrl = Mirrors.urlsFor(src, bootstrap.archive).get(0);
+					bootstrapPlan.archiveSize = bootstrap.archiveSize;
+				}
+				for (FileManifest.Entry file : bootstrap.entries) {
+					checkFileEntry(file, func);
+					String path = file.path;
+					String hash = file.hash;
+					long size = file.size;
+					String urlStr = RequestHelper.checkSchemeMismatch(src, file.url);
+					if (!Iterables.contains(file.envs, Agent.detectedEnv)) {
 						Agent.log("INFO", "Skipping "+path+" as it's not eligible for env "+Agent.detectedEnv);
 						continue;
 					}
-					JsonArray flavors = file.getArray("flavors");
-					if (flavors != null && !Iterables.intersects(flavors, ourFlavors)) {
+					if (file.flavors != null && !Iterables.intersects(file.flavors, ourFlavors)) {
 						Agent.log("INFO", "Skipping "+path+" as it's not eligible for our selected flavors");
 						continue;
 					}
-					URL fallbackUrl = new URL(src, blobPath(hash));
-					URL url;
-					if (urlStr == null) {
-						url = fallbackUrl;
-					} else {
-						url = new URL(urlStr);
-					}
 					FileToDownloadWithCode ftd = new FileToDownloadWithCode();
 					ftd.state = new FileState(func, hash, size);
-					ftd.url = url;
-					ftd.fallbackUrl = fallbackUrl;
+					assignUrls(ftd, src, file, urlStr, hash);
+					assignChunks(ftd, src, file, path, func);
 					ftd.code = bootstrapVersion.code;
 					bootstrapPlan.files.put(path, ftd);
 					bootstrapPlan.expectedState.put(path, FileState.EMPTY);
@@ -214,54 +269,65 @@ public class NativeHandler extends AbstractFormatHandler {
 			UpdatePlan<FileToDownloadWithCode> plan = new UpdatePlan<>(bootstrapping, newState);
 			if (bootstrapPlan != null) {
 				plan.files.putAll(bootstrapPlan.files);
+				plan.archiveUrl = bootstrapPlan.archiveUrl;
+				plan.archiveSize = bootstrapPlan.archiveSize;
 				plan.expectedState.putAll(bootstrapPlan.expectedState);
 			}
 			PuppetHandler.updateTitle(bootstrapping ? "Bootstrapping..." : "Updating...", false);
 			PuppetHandler.updateSubtitle("Calculating update");
 			boolean yappedAboutConsistency = false;
-			int updates = theirVersion.code-ourVersion.code;
+			int baseCode = ourVersion.code;
+			if (!bootstrapping) {
+				int jumped = jumpToCheckpoint(src, checkpoints, ourVersion.code, binary, shard, ourFlavors, plan, svc);
+				if (jumped != -1) baseCode = jumped;
+			}
+			int updates = theirVersion.code-baseCode;
+			// retrieve and verify a bounded number of update manifests ahead of the one we're
+			// collapsing, but always collapse them in order
+			Deque<Future<FileManifest>> window = new ArrayDeque<>();
+			int submitted = 0;
 			for (int i = 0; i < updates; i++) {
-				int code = ourVersion.code+(i+1);
-				JsonObject ver = RequestHelper.loadJson(new URL(src, "versions/"+code+".json"), 2*M, new URL(src, "versions/"+code+".sig"));
-				checkManifestFlavor(ver, "update", IntPredicates.equals(1));
-				HashFunction func = HashFunction.byName(ver.getString("hash_function", DEFAULT_HASH_FUNCTION));
-				for (Object o : ver.getArray("changes")) {
-					if (!(o instanceof JsonObject)) throw new IOException("Entry "+o+" in changes array is not an object");
-					JsonObject file = (JsonObject)o;
-					String path = file.getString("path");
+				while (submitted < updates && submitted < i+MANIFEST_FETCH_WINDOW) {
+					int submitCode = baseCode+(submitted+1);
+					window.add(svc.submit(() -> loadFileManifest(src, "versions/"+submitCode, FileManifest.UPDATE, binary, shard)));
+					submitted++;
+				}
+				int code = baseCode+(i+1);
+				FileManifest ver;
+				try {
+					ver = Futures.getUninterruptibly(window.removeFirst());
+				} catch (IOException | RuntimeException e) {
+					Futures.cancelAll(window);
+					throw e;
+				}
+				HashFunction func = ver.hashFunction;
+				URL packUrl = ver.pack == null ? null : Mirrors.urlsFor(src, ver.pack).get(0);
+				for (FileManifest.Entry file : ver.entries) {
+					String path = file.path;
 					if (path == null) throw new IOException("Entry in changes array is missing path");
-					String fromHash = file.getString("from_hash");
+					String fromHash = file.fromHash;
 					if (fromHash != null && fromHash.length() != func.sizeInHexChars)  throw new IOException(path+" in changes array from_hash "+fromHash+" is wrong length ("+fromHash.length()+" != "+func.sizeInHexChars+")");
-					long fromSize = file.getLong("from_size", -1);
+					long fromSize = file.fromSize;
 					if (fromSize < 0) throw new IOException(path+" in changes array has invalid or missing from_size");
 					if (fromSize == 0 && (fromHash != null && !fromHash.equals(func.emptyHash))) throw new IOException(path+" from in changes array is empty file, but hash isn't the empty hash or null ("+fromHash+" != "+func.emptyHash+")");
-					String toHash = file.getString("to_hash");
+					String toHash = file.hash;
 					if (toHash != null && toHash.length() != func.sizeInHexChars)  throw new IOException(path+" in changes array to_hash "+toHash+" is wrong length ("+toHash.length()+" != "+func.sizeInHexChars+")");
-					long toSize = file.getLong("to_size", -1);
+					long toSize = file.size;
 					if (toSize < 0) throw new IOException(path+" in changes array has invalid or missing toSize");
 					if (toSize == 0 && (toHash != null && !toHash.equals(func.emptyHash))) throw new IOException(path+" to in changes array is empty file, but hash isn't the empty hash or null ("+toHash+" != "+func.emptyHash+")");
 					if (fromSize == toSize && Objects.equals(fromHash, toHash)) {
 						Agent.log("WARN", path+" in changes array has same from and to hash/size? Ignoring");
 						continue;
 					}
-					String urlStr = RequestHelper.checkSchemeMismatch(src, file.getString("url"));
-					JsonArray envs = file.getArray("envs");
-					if (!Iterables.contains(envs, Agent.detectedEnv)) {
+					String urlStr = RequestHelper.checkSchemeMismatch(src, file.url);
+					if (!Iterables.contains(file.envs, Agent.detectedEnv)) {
 						Agent.log("INFO", "Skipping "+path+" as it's not eligible for env "+Agent.detectedEnv);
 						continue;
 					}
-					JsonArray flavors = file.getArray("flavors");
-					if (flavors != null && !Iterables.intersects(flavors, ourFlavors)) {
+					if (file.flavors != null && !Iterables.intersects(file.flavors, ourFlavors)) {
 						Agent.log("INFO", "Skipping "+path+" as it's not eligible for our selected flavors");
 						continue;
 					}
-					URL fallbackUrl = toHash == null ? null : new URL(src, blobPath(toHash));
-					URL url;
-					if (urlStr == null) {
-						url = fallbackUrl;
-					} else {
-						url = new URL(urlStr);
-					}
 					if (plan.files.containsKey(path)) {
 						FileToDownloadWithCode to = plan.files.get(path);
 						if (to.state.func == func) {
@@ -275,14 +341,31 @@ public class NativeHandler extends AbstractFormatHandler {
 						}
 						to.state = new FileState(func, toHash, toSize);
 						to.code = code;
-						to.fallbackUrl = fallbackUrl;
-						to.url = url;
+						assignUrls(to, src, file, urlStr, toHash);
+						assignChunks(to, src, file, path, func);
+						assignPack(to, file, packUrl);
+						// the local file won't be in this change's from state, so its patch is no use
+						to.patchFrom = null;
+						to.patchUrl = null;
+						to.zipRecords = null;
 					} else {
 						FileToDownloadWithCode to = new FileToDownloadWithCode();
 						to.code = code;
 						to.state = new FileState(func, toHash, toSize);
-						to.fallbackUrl = fallbackUrl;
-						to.url = url;
+						assignUrls(to, src, file, urlStr, toHash);
+						assignChunks(to, src, file, path, func);
+						assignPack(to, file, packUrl);
+						if (fromHash != null && toHash != null) {
+							if (file.patchSize > 0) {
+								to.patchFrom = new FileState(func, fromHash, fromSize);
+								to.patchUrl = Mirrors.urlsFor(src, patchPath(fromHash, toHash)).get(0);
+								to.patchSize = file.patchSize;
+							}
+							if (file.zipRecords != null) {
+								to.patchFrom = new FileState(func, fromHash, fromSize);
+								to.zipRecords = file.zipRecords;
+							}
+						}
 						plan.expectedState.put(path, new FileState(func, fromHash, fromSize));
 						plan.files.put(path, to);
 					}
@@ -300,14 +383,239 @@ public class NativeHandler extends AbstractFormatHandler {
 		}
 	}
 
+	/**
+	 * @return the versions with checkpoints that are no newer than the current version, in order
+	 */
+	private static int[] parseCheckpoints(JsonArray arr, int theirCode) {
+		if (arr == null) return new int[0];
+		List<Integer> codes = new ArrayList<>();
+		for (Object o : arr) {
+			if (o instanceof Number) {
+				int code = ((Number)o).intValue();
+				if (code > 0 && code <= theirCode) codes.add(code);
+			}
+		}
+		Collections.sort(codes);
+		int[] out = new int[codes.size()];
+		for (int i = 0; i < out.length; i++) out[i] = codes.get(i);
+		return out;
+	}
+
+	/**
+	 * If we're far enough behind for it to be cheaper, work out what changed between our version
+	 * and the newest checkpoint by comparing the full state at each, rather than collapsing every
+	 * update in between. Our own state is rebuilt from the last checkpoint at or before our
+	 * version plus the updates since then, which is also how we find out what was deleted.
+	 * @return the version the plan now brings us up to, or -1 if we didn't jump
+	 */
+	private static int jumpToCheckpoint(URL src, int[] checkpoints, int ourCode, boolean binary, String shard, JsonArray ourFlavors,
+			UpdatePlan<FileToDownloadWithCode> plan, ExecutorService svc) throws IOException {
+		int below = 0;
+		int above = 0;
+		for (int c : checkpoints) {
+			if (c <= ourCode) below = c;
+			above = c;
+		}
+		if (above <= ourCode) return -1;
+		// version 0 is nothing at all, so doesn't need a checkpoint
+		int cost = (below == 0 ? 0 : CHECKPOINT_COST)+(ourCode-below)+CHECKPOINT_COST;
+		if (cost >= above-ourCode) return -1;
+		int fbelow = below;
+		int fabove = above;
+		List<Future<FileManifest>> futures = new ArrayList<>();
+		futures.add(svc.submit(() -> loadFileManifest(src, "checkpoints/"+fabove, FileManifest.BOOTSTRAP, binary, shard)));
+		if (below != 0) futures.add(svc.submit(() -> loadFileManifest(src, "checkpoints/"+fbelow, FileManifest.BOOTSTRAP, binary, shard)));
+		for (int code = below+1; code <= ourCode; code++) {
+			int fcode = code;
+			futures.add(svc.submit(() -> loadFileManifest(src, "versions/"+fcode, FileManifest.UPDATE, binary, shard)));
+		}
+		List<FileManifest> manifests = new ArrayList<>();
+		try {
+			for (Future<FileManifest> f : futures) {
+				manifests.add(Futures.getUninterruptibly(f));
+			}
+		} catch (FileNotFoundException e) {
+			Futures.cancelAll(futures);
+			Agent.log("WARN", "Can't jump to checkpoint "+above+", as "+e.getMessage()+" is missing");
+			return -1;
+		} catch (MissingSignatureException e) {
+			Futures.cancelAll(futures);
+			Agent.log("WARN", "Can't jump to checkpoint "+above+": "+e.getMessage());
+			return -1;
+		} catch (IOException | RuntimeException e) {
+			Futures.cancelAll(futures);
+			throw e;
+		}
+		Agent.log("INFO", "Jumping to checkpoint "+above+" rather than collapsing "+(above-ourCode)+" updates");
+		FileManifest target = manifests.remove(0);
+		if (target.version == null || target.version.code != above) throw new IOException("Checkpoint "+above+" is for the wrong version");
+		Map<String, FileState> ours = new HashMap<>();
+		for (FileManifest fm : manifests) {
+			for (FileManifest.Entry file : fm.entries) {
+				if (file.path == null || !isEligible(file, ourFlavors)) continue;
+				if (file.hash == null) {
+					ours.remove(file.path);
+				} else {
+					ours.put(file.path, new FileState(fm.hashFunction, file.hash, file.size));
+				}
+			}
+		}
+		HashFunction func = target.hashFunction;
+		for (FileManifest.Entry file : target.entries) {
+			checkFileEntry(file, func);
+			if (!isEligible(file, ourFlavors)) continue;
+			FileState have = ours.remove(file.path);
+			FileState want = new FileState(func, file.hash, file.size);
+			if (want.equals(have)) continue;
+			FileToDownloadWithCode ftd = new FileToDownloadWithCode();
+			ftd.state = want;
+			ftd.code = above;
+			assignUrls(ftd, src, file, RequestHelper.checkSchemeMismatch(src, file.url), file.hash);
+			assignChunks(ftd, src, file, file.path, func);
+			plan.files.put(file.path, ftd);
+			plan.expectedState.put(file.path, have == null ? FileState.EMPTY : have);
+		}
+		// anything left was deleted somewhere between our version and the checkpoint
+		for (Map.Entry<String, FileState> en : ours.entrySet()) {
+			FileToDownloadWithCode ftd = new FileToDownloadWithCode();
+			ftd.state = new FileState(en.getValue().func, null, 0);
+			ftd.code = above;
+			plan.files.put(en.getKey(), ftd);
+			plan.expectedState.put(en.getKey(), en.getValue());
+		}
+		return above;
+	}
+
+	private static void checkFileEntry(FileManifest.Entry file, HashFunction func) throws IOException {
+		String path = file.path;
+		if (path == null) throw new IOException("Entry in files array is missing path");
+		String hash = file.hash;
+		if (hash == null) throw new IOException(path+" in files array is missing hash");
+		if (hash.length() != func.sizeInHexChars)  throw new IOException(path+" in files array hash "+hash+" is wrong length ("+hash.length()+" != "+func.sizeInHexChars+")");
+		long size = file.size;
+		if (size < 0) throw new IOException(path+" in files array has invalid or missing size");
+		if (size == 0 && !hash.equals(func.emptyHash)) throw new IOException(path+" in files array is empty file, but hash isn't the empty hash ("+hash+" != "+func.emptyHash+")");
+	}
+
+	private static boolean isEligible(FileManifest.Entry file, JsonArray ourFlavors) {
+		return Iterables.contains(file.envs, Agent.detectedEnv)
+				&& (file.flavors == null || Iterables.intersects(file.flavors, ourFlavors));
+	}
+
+	/**
+	 * Fill in the URLs a file will be downloaded from: its own URL if it has one, then its own
+	 * mirrors, then the blob on each of the pack's mirrors, worst last as the fallback. If the
+	 * pack has a gzip of the blob, that's tried first of all.
+	 */
+	private static void assignUrls(FilePlan fp, URL src, FileManifest.Entry file, String urlStr, String hash) throws IOException {
+		fp.mirrorUrls = new ArrayList<>();
+		if (file.mirrors != null) {
+			for (String mirror : file.mirrors) {
+				String str = RequestHelper.checkSchemeMismatch(src, mirror);
+				if (str != null) fp.mirrorUrls.add(new URL(str));
+			}
+		}
+		if (hash == null) {
+			fp.url = urlStr == null ? null : new URL(urlStr);
+			fp.fallbackUrl = null;
+			fp.gzipUrl = null;
+			return;
+		}
+		fp.gzipUrl = file.gzipSize > 0 ? Mirrors.urlsFor(src, blobPath(hash)+".gz").get(0) : null;
+		List<URL> blobUrls = Mirrors.urlsFor(src, blobPath(hash));
+		int last = blobUrls.size()-1;
+		fp.fallbackUrl = blobUrls.get(last);
+		if (urlStr == null) {
+			fp.url = blobUrls.get(0);
+			if (last > 1) fp.mirrorUrls.addAll(blobUrls.subList(1, last));
+		} else {
+			fp.url = new URL(urlStr);
+			fp.mirrorUrls.addAll(blobUrls.subList(0, last));
+		}
+	}
+
 	private static String blobPath(String hash) {
 		return "blobs/"+hash.substring(0, 2)+"/"+hash;
 	}
 
+	private static void assignChunks(FilePlan fp, URL src, FileManifest.Entry file, String path, HashFunction func) throws IOException {
+		if (file.chunkHashes == null || file.chunkHashes.length == 0) {
+			fp.chunks = null;
+			fp.chunkSource = null;
+			return;
+		}
+		List<FileState> chunks = new ArrayList<>(file.chunkHashes.length);
+		for (int i = 0; i < file.chunkHashes.length; i++) {
+			String hash = file.chunkHashes[i];
+			if (hash == null || hash.length() != func.sizeInHexChars) throw new IOException(path+" has a chunk with a missing or wrong length hash");
+			long size = file.chunkSizes[i];
+			if (size <= 0 || size > Chunker.MAX_SIZE) throw new IOException(path+" has a chunk with an invalid size");
+			chunks.add(new FileState(func, hash, size));
+		}
+		fp.chunks = chunks;
+		fp.chunkSource = src;
+	}
+
+	private static void assignPack(FilePlan fp, FileManifest.Entry file, URL packUrl) {
+		if (packUrl == null || file.packOffset < 0 || fp.state.hash == null) {
+			fp.packUrl = null;
+			fp.packOffset = -1;
+		} else {
+			fp.packUrl = packUrl;
+			fp.packOffset = file.packOffset;
+		}
+	}
+
+	/**
+	 * Retrieve a bootstrap or update manifest, in its binary form if we've been told there is
+	 * one, falling back to JSON if it turns out there isn't.
+	 * @param base the path of the manifest relative to the root manifest, without an extension
+	 * @param shard the env to retrieve the shard of, which only has the entries eligible for that
+	 * 		env; if there turns out to be no such shard, or it isn't signed, the whole manifest is
+	 * 		retrieved instead
+	 */
+	private static FileManifest loadFileManifest(URL src, String base, String flavor, boolean binary, String shard) throws IOException {
+		if (shard != null) {
+			try {
+				return loadFileManifest(src, base+"."+shard, flavor, binary, null);
+			} catch (FileNotFoundException e) {
+				Agent.log("DEBUG", "No "+shard+" shard of "+base+", using the whole thing");
+			} catch (MissingSignatureException e) {
+				Agent.log("DEBUG", "The "+shard+" shard of "+base+" isn't signed, using the whole thing");
+			}
+		}
+		if (binary) {
+			try {
+				byte[] data = RequestHelper.loadAndVerify(new URL(src, base+".bin"), 8*M, new URL(src, base+".bin.sig"));
+				FileManifest fm = BinaryManifest.read(data);
+				if (!flavor.equals(fm.flavor)) throw new IOException("Manifest is of flavor "+fm.flavor+", but we expected "+flavor);
+				return fm;
+			} catch (FileNotFoundException e) {
+				Agent.log("DEBUG", "No binary form of "+base+", using JSON");
+			} catch (MissingSignatureException e) {
+				// the signing tooling may only know about the JSON form; a bad signature is still fatal
+				Agent.log("DEBUG", "Binary form of "+base+" isn't signed, using JSON");
+			}
+		}
+		// parsed as it streams in, as these can get very large
+		FileManifest fm = RequestHelper.streamAndVerify(new URL(src, base+".json"), 16*M, new URL(src, base+".sig"),
+				in -> FileManifest.readJson(in, flavor, DEFAULT_HASH_FUNCTION));
+		checkManifestFlavor(fm.unsupManifest, flavor, IntPredicates.equals(1));
+		return fm;
+	}
+
+	private static String patchPath(String fromHash, String toHash) {
+		return "patches/"+toHash.substring(0, 2)+"/"+fromHash+"-"+toHash;
+	}
+
 	private static int checkManifestFlavor(JsonObject manifest, String flavor, IntPredicate versionPredicate) throws IOException {
 		if (!manifest.containsKey("unsup_manifest")) throw new IOException("unsup_manifest key is missing");
 		String str = manifest.getString("unsup_manifest");
 		if (str == null) throw new IOException("unsup_manifest key is not a string");
+		return checkManifestFlavor(str, flavor, versionPredicate);
+	}
+
+	private static int checkManifestFlavor(String str, String flavor, IntPredicate versionPredicate) throws IOException {
 		int dash = str.indexOf('-');
 		if (dash == -1) throw new IOException("unsup_manifest value does not contain a dash");
 		String lhs = str.substring(0, dash);
@@ -10,8 +10,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
@@ -31,6 +29,7 @@ import com.unascribed.sup.data.Version;
 import com.unascribed.sup.data.FlavorGroup.FlavorChoice;
 import com.unascribed.sup.pieces.Murmur2MessageDigest;
 import com.unascribed.sup.util.Bases;
+import com.unascribed.sup.util.HostScheduler;
 import com.unascribed.sup.util.RequestHelper;
 import com.unascribed.sup.util.Iterables;
 
@@ -222,7 +221,7 @@ public class PackwizHandler extends AbstractFormatHandler {
 					this.toml = metafile;
 				}
 			}
-			ExecutorService svc = Executors.newFixedThreadPool(12);
+			HostScheduler svc = new HostScheduler();
 			List<Future<Metafile>> metafileFutures = new ArrayList<>();
 			Map<String, FileState> postState = new HashMap<>();
 			HashFunction func = parseFunc(index.getString("hash-format"));
@@ -236,8 +235,9 @@ public class PackwizHandler extends AbstractFormatHandler {
 						toDelete.remove(String.valueOf(metafileFiles.get(path)));
 						continue;
 					}
-					metafileFutures.add(svc.submit(() -> {
-						return new Metafile(name, path, hash, RequestHelper.loadToml(new URL(src, path), 8*K, func, hash));
+					URL metafileUrl = new URL(src, path);
+					metafileFutures.add(svc.submit(metafileUrl, () -> {
+						return new Metafile(name, path, hash, RequestHelper.loadToml(metafileUrl, 8*K, func, hash));
 					}));
 				} else {
 					FilePlan f = new FilePlan();
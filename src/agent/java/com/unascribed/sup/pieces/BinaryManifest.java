@@ -0,0 +1,330 @@
+package com.unascribed.sup.pieces;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.unascribed.sup.data.FileManifest;
+import com.unascribed.sup.data.FileManifest.Entry;
+import com.unascribed.sup.data.HashFunction;
+import com.unascribed.sup.data.Version;
+import com.unascribed.sup.util.Bases;
+
+/**
+ * A compact binary form of bootstrap and update manifests, for packs large enough that parsing
+ * the JSON form gets slow. Paths, URLs, envs and flavors are stored once in tables and referred
+ * to by index, hashes are stored as raw bytes, numbers as varints, and envs and flavors of each
+ * file as bitmasks over their table. It's read in a single pass with no intermediate tree.
+ * <p>
+ * Layout: magic, format version, flavor, hash function, the flavor's header fields, the string,
+ * env and flavor tables, then the entries. Each entry starts with a bitmask of which optional
+ * fields follow.
+ */
+public class BinaryManifest {
+
+	private static final byte[] MAGIC = "unsup-manifest\0".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 2;
+
+	private static final int HAS_FROM_HASH = 1<<0;
+	private static final int HAS_HASH = 1<<1;
+	private static final int HAS_URL = 1<<2;
+	private static final int HAS_ENVS = 1<<3;
+	private static final int HAS_FLAVORS = 1<<4;
+	private static final int HAS_MIRRORS = 1<<5;
+	private static final int HAS_PATCH = 1<<6;
+	private static final int HAS_ZIP_RECORDS = 1<<7;
+	private static final int HAS_CHUNKS = 1<<8;
+	private static final int HAS_GZIP = 1<<9;
+	private static final int HAS_PACK = 1<<10;
+	private static final int KNOWN_FLAGS = (1<<11)-1;
+
+	public static FileManifest read(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a binary manifest");
+		int version = in.read();
+		if (version != VERSION) throw new IOException("Don't know how to parse a version "+version+" binary manifest");
+		FileManifest fm = new FileManifest();
+		fm.flavor = readString(in, data.length);
+		boolean update;
+		if (FileManifest.UPDATE.equals(fm.flavor)) {
+			update = true;
+		} else if (FileManifest.BOOTSTRAP.equals(fm.flavor)) {
+			update = false;
+		} else {
+			throw new IOException("Unknown binary manifest flavor "+fm.flavor);
+		}
+		fm.hashFunction = HashFunction.byName(readString(in, data.length));
+		int hashLen = fm.hashFunction.sizeInBytes;
+		if (update) {
+			fm.pack = emptyToNull(readString(in, data.length));
+		} else {
+			String name = readString(in, data.length);
+			fm.version = new Version(name, (int)readVarint(in));
+			fm.archive = emptyToNull(readString(in, data.length));
+			fm.archiveSize = readVarint(in)-1;
+		}
+		String[] strings = new String[readCount(in, data.length)];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = readString(in, data.length);
+		}
+		String[] envs = readTable(in, strings, data.length);
+		String[] flavors = readTable(in, strings, data.length);
+		byte[] envMask = new byte[(envs.length+7)/8];
+		byte[] flavorMask = new byte[(flavors.length+7)/8];
+		int count = readCount(in, data.length);
+		fm.entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Entry e = new Entry();
+			int flags = (int)readVarint(in);
+			if ((flags & ~KNOWN_FLAGS) != 0) throw new IOException("Unknown flags in binary manifest entry "+i);
+			e.path = strings[readIndex(in, strings.length)];
+			if (update) {
+				if ((flags & HAS_FROM_HASH) != 0) e.fromHash = readHash(in, hashLen);
+				e.fromSize = readVarint(in);
+			}
+			if ((flags & HAS_HASH) != 0) e.hash = readHash(in, hashLen);
+			e.size = readVarint(in);
+			if ((flags & HAS_URL) != 0) e.url = strings[readIndex(in, strings.length)];
+			if ((flags & HAS_ENVS) != 0) e.envs = readMask(in, envMask, envs);
+			if ((flags & HAS_FLAVORS) != 0) e.flavors = readMask(in, flavorMask, flavors);
+			if ((flags & HAS_MIRRORS) != 0) {
+				int n = readCount(in, data.length);
+				e.mirrors = new ArrayList<>(n);
+				for (int j = 0; j < n; j++) {
+					e.mirrors.add(strings[readIndex(in, strings.length)]);
+				}
+			}
+			if ((flags & HAS_PATCH) != 0) e.patchSize = readVarint(in);
+			if ((flags & HAS_ZIP_RECORDS) != 0) {
+				e.zipRecords = new long[readCount(in, data.length)][];
+				for (int j = 0; j < e.zipRecords.length; j++) {
+					e.zipRecords[j] = new long[] {readVarint(in), in.readInt()&0xFFFFFFFFL};
+				}
+			}
+			if ((flags & HAS_CHUNKS) != 0) {
+				int n = readCount(in, data.length);
+				e.chunkHashes = new String[n];
+				e.chunkSizes = new long[n];
+				for (int j = 0; j < n; j++) {
+					e.chunkHashes[j] = readHash(in, hashLen);
+					e.chunkSizes[j] = readVarint(in);
+				}
+			}
+			if ((flags & HAS_GZIP) != 0) e.gzipSize = readVarint(in);
+			if ((flags & HAS_PACK) != 0) e.packOffset = readVarint(in);
+			fm.entries.add(e);
+		}
+		if (in.read() != -1) throw new IOException("Trailing garbage after binary manifest");
+		return fm;
+	}
+
+	public static void write(FileManifest fm, OutputStream os) throws IOException {
+		boolean update = FileManifest.UPDATE.equals(fm.flavor);
+		Map<String, Integer> strings = new HashMap<>();
+		List<String> stringList = new ArrayList<>();
+		Map<String, Integer> envs = new HashMap<>();
+		Map<String, Integer> flavors = new HashMap<>();
+		for (Entry e : fm.entries) {
+			intern(strings, stringList, e.path);
+			if (e.url != null) intern(strings, stringList, e.url);
+			if (e.mirrors != null) {
+				for (String s : e.mirrors) intern(strings, stringList, s);
+			}
+			if (e.envs != null) {
+				for (String s : e.envs) {
+					intern(strings, stringList, s);
+					envs.putIfAbsent(s, envs.size());
+				}
+			}
+			if (e.flavors != null) {
+				for (String s : e.flavors) {
+					intern(strings, stringList, s);
+					flavors.putIfAbsent(s, flavors.size());
+				}
+			}
+		}
+		DataOutputStream out = new DataOutputStream(os);
+		out.write(MAGIC);
+		out.write(VERSION);
+		writeString(out, fm.flavor);
+		writeString(out, fm.hashFunction.name);
+		if (update) {
+			writeString(out, fm.pack == null ? "" : fm.pack);
+		} else {
+			writeString(out, fm.version.name);
+			writeVarint(out, fm.version.code);
+			writeString(out, fm.archive == null ? "" : fm.archive);
+			writeVarint(out, fm.archiveSize+1);
+		}
+		writeVarint(out, stringList.size());
+		for (String s : stringList) writeString(out, s);
+		writeTable(out, envs, strings);
+		writeTable(out, flavors, strings);
+		int hashLen = fm.hashFunction.sizeInBytes;
+		writeVarint(out, fm.entries.size());
+		for (Entry e : fm.entries) {
+			int flags = 0;
+			if (update && e.fromHash != null) flags |= HAS_FROM_HASH;
+			if (e.hash != null) flags |= HAS_HASH;
+			if (e.url != null) flags |= HAS_URL;
+			if (e.envs != null) flags |= HAS_ENVS;
+			if (e.flavors != null) flags |= HAS_FLAVORS;
+			if (e.mirrors != null && !e.mirrors.isEmpty()) flags |= HAS_MIRRORS;
+			if (e.patchSize >= 0) flags |= HAS_PATCH;
+			if (e.zipRecords != null) flags |= HAS_ZIP_RECORDS;
+			if (e.chunkHashes != null) flags |= HAS_CHUNKS;
+			if (e.gzipSize >= 0) flags |= HAS_GZIP;
+			if (e.packOffset >= 0) flags |= HAS_PACK;
+			writeVarint(out, flags);
+			writeVarint(out, strings.get(e.path));
+			if (update) {
+				if (e.fromHash != null) writeHash(out, e.fromHash, hashLen);
+				writeVarint(out, e.fromSize);
+			}
+			if (e.hash != null) writeHash(out, e.hash, hashLen);
+			writeVarint(out, e.size);
+			if (e.url != null) writeVarint(out, strings.get(e.url));
+			if (e.envs != null) writeMask(out, e.envs, envs);
+			if (e.flavors != null) writeMask(out, e.flavors, flavors);
+			if ((flags & HAS_MIRRORS) != 0) {
+				writeVarint(out, e.mirrors.size());
+				for (String s : e.mirrors) writeVarint(out, strings.get(s));
+			}
+			if (e.patchSize >= 0) writeVarint(out, e.patchSize);
+			if (e.zipRecords != null) {
+				writeVarint(out, e.zipRecords.length);
+				for (long[] rec : e.zipRecords) {
+					writeVarint(out, rec[0]);
+					out.writeInt((int)rec[1]);
+				}
+			}
+			if (e.chunkHashes != null) {
+				writeVarint(out, e.chunkHashes.length);
+				for (int j = 0; j < e.chunkHashes.length; j++) {
+					writeHash(out, e.chunkHashes[j], hashLen);
+					writeVarint(out, e.chunkSizes[j]);
+				}
+			}
+			if (e.gzipSize >= 0) writeVarint(out, e.gzipSize);
+			if (e.packOffset >= 0) writeVarint(out, e.packOffset);
+		}
+		out.flush();
+	}
+
+	private static void intern(Map<String, Integer> strings, List<String> list, String s) {
+		if (!strings.containsKey(s)) {
+			strings.put(s, list.size());
+			list.add(s);
+		}
+	}
+
+	private static String[] readTable(DataInputStream in, String[] strings, int limit) throws IOException {
+		String[] out = new String[readCount(in, limit)];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = strings[readIndex(in, strings.length)];
+		}
+		return out;
+	}
+
+	private static void writeTable(DataOutputStream out, Map<String, Integer> table, Map<String, Integer> strings) throws IOException {
+		String[] arr = new String[table.size()];
+		for (Map.Entry<String, Integer> en : table.entrySet()) arr[en.getValue()] = en.getKey();
+		writeVarint(out, arr.length);
+		for (String s : arr) writeVarint(out, strings.get(s));
+	}
+
+	private static List<String> readMask(DataInputStream in, byte[] buf, String[] table) throws IOException {
+		in.readFully(buf);
+		List<String> out = new ArrayList<>();
+		for (int i = 0; i < table.length; i++) {
+			if ((buf[i/8] & (1<<(i%8))) != 0) out.add(table[i]);
+		}
+		return out;
+	}
+
+	private static void writeMask(DataOutputStream out, List<String> values, Map<String, Integer> table) throws IOException {
+		byte[] mask = new byte[(table.size()+7)/8];
+		for (String s : values) {
+			int i = table.get(s);
+			mask[i/8] |= 1<<(i%8);
+		}
+		out.write(mask);
+	}
+
+	private static String readHash(DataInputStream in, int len) throws IOException {
+		byte[] buf = new byte[len];
+		in.readFully(buf);
+		return Bases.bytesToHex(buf);
+	}
+
+	private static void writeHash(DataOutputStream out, String hash, int len) throws IOException {
+		byte[] bys = Bases.hexToBytes(hash);
+		if (bys.length != len) throw new IOException("Hash "+hash+" is the wrong length");
+		out.write(bys);
+	}
+
+	private static String readString(DataInputStream in, int limit) throws IOException {
+		byte[] buf = new byte[readCount(in, limit)];
+		in.readFully(buf);
+		return new String(buf, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bys = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bys.length);
+		out.write(bys);
+	}
+
+	private static String emptyToNull(String s) {
+		return s.isEmpty() ? null : s;
+	}
+
+	/**
+	 * Read a count of things, each of which takes at least a byte, so a corrupt count can't make
+	 * us allocate more than the size of the manifest.
+	 */
+	private static int readCount(InputStream in, int limit) throws IOException {
+		long l = readVarint(in);
+		if (l > limit) throw new IOException("Corrupt binary manifest; count of "+l+" is impossibly large");
+		return (int)l;
+	}
+
+	private static int readIndex(InputStream in, int size) throws IOException {
+		long l = readVarint(in);
+		if (l >= size) throw new IOException("Corrupt binary manifest; index "+l+" is out of bounds");
+		return (int)l;
+	}
+
+	private static void writeVarint(OutputStream out, long l) throws IOException {
+		if (l < 0) throw new IOException("Can't write a negative varint");
+		while ((l & ~0x7FL) != 0) {
+			out.write((int)((l & 0x7F) | 0x80));
+			l >>>= 7;
+		}
+		out.write((int)l);
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long l = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1) throw new EOFException();
+			l |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return l;
+		}
+		throw new IOException("Varint is too long");
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.unascribed.sup.pieces;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allows one thread to ask another to abandon some blocking IO. Streams registered with the
+ * signal are closed when it's cancelled, which unblocks any thread reading from them.
+ */
+public class CancellationSignal {
+
+	public static class CancelledException extends IOException {
+		public CancelledException() {
+			super("Cancelled");
+		}
+	}
+
+	private final List<Closeable> closeables = new ArrayList<>();
+	private volatile boolean cancelled = false;
+
+	public void cancel() {
+		List<Closeable> toClose;
+		synchronized (closeables) {
+			if (cancelled) return;
+			cancelled = true;
+			toClose = new ArrayList<>(closeables);
+			closeables.clear();
+		}
+		for (Closeable c : toClose) {
+			try {
+				c.close();
+			} catch (Throwable t) {}
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public void throwIfCancelled() throws CancelledException {
+		if (cancelled) throw new CancelledException();
+	}
+
+	/**
+	 * Close the given resource when this signal is cancelled, or immediately if it already has
+	 * been.
+	 */
+	public void register(Closeable c) {
+		synchronized (closeables) {
+			if (!cancelled) {
+				closeables.add(c);
+				return;
+			}
+		}
+		try {
+			c.close();
+		} catch (Throwable t) {}
+	}
+
+	public void unregister(Closeable c) {
+		synchronized (closeables) {
+			closeables.remove(c);
+		}
+	}
+
+}
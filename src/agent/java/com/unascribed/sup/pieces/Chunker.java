@@ -0,0 +1,84 @@
+package com.unascribed.sup.pieces;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content-defined chunking, FastCDC-style. Chunk boundaries are picked by a rolling gear hash
+ * of the data itself rather than by offset, so an insertion or deletion in the middle of a file
+ * only changes the chunks around it, and everything after it still chunks the same way.
+ * <p>
+ * The parameters here are part of the manifest format; changing them means no chunks will be
+ * shared with files chunked before the change.
+ */
+public class Chunker {
+
+	public static final int MIN_SIZE = 16*1024;
+	public static final int AVG_SIZE = 64*1024;
+	public static final int MAX_SIZE = 256*1024;
+
+	// "normalized chunking": harder to cut before the average size, easier after it
+	private static final long MASK_SMALL = 0x94A5294A52900000L;
+	private static final long MASK_LARGE = 0x9124492248900000L;
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		long seed = 0x756E737570L;
+		for (int i = 0; i < GEAR.length; i++) {
+			// splitmix64
+			long z = (seed += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	public interface ChunkConsumer {
+		void accept(long offset, byte[] buf, int len) throws IOException;
+	}
+
+	/**
+	 * Split the given stream into chunks, passing each to the consumer in order. The buffer
+	 * passed to the consumer is reused.
+	 */
+	public static void chunk(InputStream in, ChunkConsumer consumer) throws IOException {
+		byte[] buf = new byte[MAX_SIZE];
+		int len = 0;
+		long offset = 0;
+		boolean eof = false;
+		while (true) {
+			while (!eof && len < buf.length) {
+				int r = in.read(buf, len, buf.length-len);
+				if (r == -1) {
+					eof = true;
+				} else {
+					len += r;
+				}
+			}
+			if (len == 0) return;
+			int cut = findCut(buf, len);
+			consumer.accept(offset, buf, cut);
+			offset += cut;
+			System.arraycopy(buf, cut, buf, 0, len-cut);
+			len -= cut;
+		}
+	}
+
+	private static int findCut(byte[] buf, int len) {
+		if (len <= MIN_SIZE) return len;
+		int normal = Math.min(AVG_SIZE, len);
+		long h = 0;
+		int i = MIN_SIZE;
+		for (; i < normal; i++) {
+			h = (h << 1)+GEAR[buf[i]&0xFF];
+			if ((h & MASK_SMALL) == 0) return i+1;
+		}
+		for (; i < len; i++) {
+			h = (h << 1)+GEAR[buf[i]&0xFF];
+			if ((h & MASK_LARGE) == 0) return i+1;
+		}
+		return len;
+	}
+
+}
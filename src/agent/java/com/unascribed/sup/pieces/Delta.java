@@ -0,0 +1,251 @@
+package com.unascribed.sup.pieces;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A simple binary delta format, describing a file as a series of copies out of another file and
+ * literal insertions, deflated. Deltas are generated rsync-style by matching fixed-size blocks
+ * of the old file anywhere in the new one using a rolling checksum, which copes well with the
+ * kinds of change we see in jars (a few entries changing, shifting everything after them).
+ * <p>
+ * Applying a delta only needs random access to the old file, and streams the new file out.
+ */
+public class Delta {
+
+	private static final byte[] MAGIC = "unsup-delta\0".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+
+	private static final int OP_END = 0;
+	private static final int OP_COPY = 1;
+	private static final int OP_INSERT = 2;
+
+	private static final int BLOCK_SIZE = 32;
+
+	/**
+	 * Write a delta that turns {@code from} into {@code to}.
+	 */
+	public static void create(File from, File to, OutputStream out) throws IOException {
+		if (from.length() > Integer.MAX_VALUE || to.length() > Integer.MAX_VALUE) {
+			throw new IOException("Files are too large to diff");
+		}
+		byte[] src = Files.readAllBytes(from.toPath());
+		byte[] dst = Files.readAllBytes(to.toPath());
+		out.write(MAGIC);
+		out.write(VERSION);
+		Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			DeflaterOutputStream dout = new DeflaterOutputStream(out, def, 65536);
+			writeVarint(dout, dst.length);
+			encode(src, dst, dout);
+			dout.write(OP_END);
+			dout.finish();
+		} finally {
+			def.end();
+		}
+	}
+
+	private static void encode(byte[] src, byte[] dst, OutputStream out) throws IOException {
+		int blocks = src.length/BLOCK_SIZE;
+		// open-addressed table from the checksum of each block in src to its offset
+		int tableSize = Integer.highestOneBit(Math.max(16, blocks*2))*2;
+		int[] keys = new int[tableSize];
+		int[] offsets = new int[tableSize];
+		Arrays.fill(offsets, -1);
+		for (int i = 0; i < blocks; i++) {
+			int ofs = i*BLOCK_SIZE;
+			int sum = checksum(src, ofs);
+			int slot = mix(sum) & (tableSize-1);
+			while (offsets[slot] != -1 && keys[slot] != sum) {
+				slot = (slot+1) & (tableSize-1);
+			}
+			// first occurrence wins; later duplicates of the same block add nothing
+			if (offsets[slot] == -1) {
+				keys[slot] = sum;
+				offsets[slot] = ofs;
+			}
+		}
+		int pending = 0;
+		int i = 0;
+		int a = 0, b = 0;
+		boolean rolling = false;
+		while (i+BLOCK_SIZE <= dst.length && blocks > 0) {
+			if (!rolling) {
+				a = 0;
+				b = 0;
+				for (int j = 0; j < BLOCK_SIZE; j++) {
+					a += dst[i+j]&0xFF;
+					b += (BLOCK_SIZE-j)*(dst[i+j]&0xFF);
+				}
+				rolling = true;
+			}
+			int sum = (a&0xFFFF)|(b<<16);
+			int match = -1;
+			int slot = mix(sum) & (tableSize-1);
+			while (offsets[slot] != -1) {
+				if (keys[slot] == sum) {
+					if (regionMatches(src, offsets[slot], dst, i, BLOCK_SIZE)) {
+						match = offsets[slot];
+					}
+					break;
+				}
+				slot = (slot+1) & (tableSize-1);
+			}
+			if (match == -1) {
+				int out_ = dst[i]&0xFF;
+				if (i+BLOCK_SIZE < dst.length) {
+					int in = dst[i+BLOCK_SIZE]&0xFF;
+					a += in-out_;
+					b += a-(BLOCK_SIZE*out_);
+				}
+				i++;
+				pending++;
+				continue;
+			}
+			int start = i;
+			int srcStart = match;
+			// grow the match backwards into whatever we were about to insert
+			while (pending > 0 && srcStart > 0 && src[srcStart-1] == dst[start-1]) {
+				srcStart--;
+				start--;
+				pending--;
+			}
+			int end = i+BLOCK_SIZE;
+			int srcEnd = match+BLOCK_SIZE;
+			while (end < dst.length && srcEnd < src.length && src[srcEnd] == dst[end]) {
+				end++;
+				srcEnd++;
+			}
+			writeInsert(out, dst, start-pending, pending);
+			pending = 0;
+			out.write(OP_COPY);
+			writeVarint(out, srcStart);
+			writeVarint(out, end-start);
+			i = end;
+			rolling = false;
+		}
+		writeInsert(out, dst, i-pending, dst.length-(i-pending));
+	}
+
+	private static void writeInsert(OutputStream out, byte[] buf, int ofs, int len) throws IOException {
+		if (len == 0) return;
+		out.write(OP_INSERT);
+		writeVarint(out, len);
+		out.write(buf, ofs, len);
+	}
+
+	private static int checksum(byte[] buf, int ofs) {
+		int a = 0, b = 0;
+		for (int j = 0; j < BLOCK_SIZE; j++) {
+			a += buf[ofs+j]&0xFF;
+			b += (BLOCK_SIZE-j)*(buf[ofs+j]&0xFF);
+		}
+		return (a&0xFFFF)|(b<<16);
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	private static boolean regionMatches(byte[] a, int aOfs, byte[] b, int bOfs, int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[aOfs+i] != b[bOfs+i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Apply a delta to {@code from}, writing the result to {@code out}.
+	 * @param expectedSize the size the result must be, or -1 to trust whatever the delta says;
+	 * 		a delta claiming any other size is rejected before anything is written
+	 * @return the number of bytes written
+	 */
+	public static long apply(File from, InputStream delta, OutputStream out, long expectedSize) throws IOException {
+		DataInputStream din = new DataInputStream(delta);
+		byte[] magic = new byte[MAGIC.length];
+		din.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a delta");
+		int version = din.read();
+		if (version != VERSION) throw new IOException("Don't know how to apply a version "+version+" delta");
+		InputStream in = new InflaterInputStream(din);
+		long declaredSize = readVarint(in);
+		if (expectedSize != -1 && declaredSize != expectedSize) {
+			throw new IOException("Delta says it produces "+declaredSize+" bytes, but we expected "+expectedSize);
+		}
+		expectedSize = declaredSize;
+		long written = 0;
+		byte[] buf = new byte[16384];
+		try (RandomAccessFile raf = new RandomAccessFile(from, "r")) {
+			long srcLen = raf.length();
+			while (true) {
+				int op = in.read();
+				if (op == OP_END) break;
+				long len;
+				if (op == OP_COPY) {
+					long ofs = readVarint(in);
+					len = readVarint(in);
+					if (ofs < 0 || len < 0 || ofs+len > srcLen) throw new IOException("Delta copies from outside of the source file");
+					raf.seek(ofs);
+					long remaining = len;
+					while (remaining > 0) {
+						int r = raf.read(buf, 0, (int)Math.min(buf.length, remaining));
+						if (r == -1) throw new EOFException();
+						out.write(buf, 0, r);
+						remaining -= r;
+					}
+				} else if (op == OP_INSERT) {
+					len = readVarint(in);
+					long remaining = len;
+					while (remaining > 0) {
+						int r = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+						if (r == -1) throw new EOFException();
+						out.write(buf, 0, r);
+						remaining -= r;
+					}
+				} else if (op == -1) {
+					throw new EOFException();
+				} else {
+					throw new IOException("Unknown delta op "+op);
+				}
+				written += len;
+				if (written > expectedSize) throw new IOException("Delta produced more data than it said it would");
+			}
+		}
+		if (written != expectedSize) throw new IOException("Delta produced "+written+" bytes, but said it would produce "+expectedSize);
+		return written;
+	}
+
+	private static void writeVarint(OutputStream out, long l) throws IOException {
+		while ((l & ~0x7FL) != 0) {
+			out.write((int)((l & 0x7F) | 0x80));
+			l >>>= 7;
+		}
+		out.write((int)l);
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long l = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1) throw new EOFException();
+			l |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return l;
+		}
+		throw new IOException("Varint is too long");
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.unascribed.sup.pieces;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Just enough of a tar reader to stream the entries out of a ustar or GNU tar one at a time.
+ * Long names and pax headers are skipped over rather than understood, so entries are expected to
+ * have names that fit in the header.
+ */
+public class TarReader {
+
+	public static class Entry {
+		public final String name;
+		public final long size;
+		public final boolean regular;
+
+		public Entry(String name, long size, boolean regular) {
+			this.name = name;
+			this.size = size;
+			this.regular = regular;
+		}
+	}
+
+	private static final int BLOCK_SIZE = 512;
+
+	private final InputStream in;
+	private final byte[] header = new byte[BLOCK_SIZE];
+	private final byte[] skipBuf = new byte[BLOCK_SIZE*16];
+	private long remaining = 0;
+	private long padding = 0;
+
+	public TarReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Skip whatever's left of the current entry and read the header of the next one.
+	 * @return the next entry, or null if the end of the archive has been reached
+	 */
+	public Entry next() throws IOException {
+		skip(remaining+padding);
+		remaining = 0;
+		padding = 0;
+		if (!readBlock()) return null;
+		if (isZero(header)) {
+			// the end is marked by two zero blocks, but one is enough for us
+			return null;
+		}
+		if (!checksumMatches()) throw new IOException("Bad tar header checksum");
+		String name = readString(0, 100);
+		if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+			String prefix = readString(345, 155);
+			if (!prefix.isEmpty()) name = prefix+"/"+name;
+		}
+		long size = readNumber(124, 12);
+		if (size < 0) throw new IOException("Negative tar entry size");
+		byte type = header[156];
+		remaining = size;
+		padding = (BLOCK_SIZE-(size%BLOCK_SIZE))%BLOCK_SIZE;
+		return new Entry(name, size, type == '0' || type == 0);
+	}
+
+	/**
+	 * @return a stream over the data of the current entry, which must be consumed before the
+	 * 		next call to {@link #next}; closing it does nothing
+	 */
+	public InputStream stream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0]&0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) return -1;
+				int r = in.read(b, off, (int)Math.min(len, remaining));
+				if (r == -1) throw new EOFException("Tar entry ended early");
+				remaining -= r;
+				return r;
+			}
+		};
+	}
+
+	private boolean readBlock() throws IOException {
+		int read = 0;
+		while (read < BLOCK_SIZE) {
+			int r = in.read(header, read, BLOCK_SIZE-read);
+			if (r == -1) {
+				if (read == 0) return false;
+				throw new EOFException("Tar header ended early");
+			}
+			read += r;
+		}
+		return true;
+	}
+
+	private void skip(long n) throws IOException {
+		while (n > 0) {
+			int r = in.read(skipBuf, 0, (int)Math.min(skipBuf.length, n));
+			if (r == -1) throw new EOFException("Tar entry ended early");
+			n -= r;
+		}
+	}
+
+	private boolean checksumMatches() {
+		long expected = readNumber(148, 8);
+		long sum = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			// the checksum field itself is counted as spaces
+			sum += (i >= 148 && i < 156) ? ' ' : header[i]&0xFF;
+		}
+		return sum == expected;
+	}
+
+	private String readString(int ofs, int len) {
+		int end = ofs;
+		while (end < ofs+len && header[end] != 0) end++;
+		return new String(header, ofs, end-ofs, StandardCharsets.UTF_8);
+	}
+
+	private long readNumber(int ofs, int len) {
+		if ((header[ofs]&0x80) != 0) {
+			// GNU base-256 extension for sizes that don't fit in octal
+			long l = header[ofs]&0x7F;
+			for (int i = 1; i < len; i++) {
+				l = (l << 8)|(header[ofs+i]&0xFF);
+			}
+			return l;
+		}
+		long l = 0;
+		for (int i = ofs; i < ofs+len; i++) {
+			byte b = header[i];
+			if (b == 0 || b == ' ') {
+				if (l == 0) continue;
+				break;
+			}
+			if (b < '0' || b > '7') return -1;
+			l = (l << 3)|(b-'0');
+		}
+		return l;
+	}
+
+	private static boolean isZero(byte[] b) {
+		for (byte v : b) {
+			if (v != 0) return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.unascribed.sup.pieces;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Splits a zip file into its raw records: each entry's local header and data exactly as they
+ * appear in the file, plus whatever comes before the first entry and the central directory at
+ * the end. Two zips that share an entry byte-for-byte will share its record, so a new version of
+ * a jar can be assembled from the records of the old one plus only the records that changed.
+ */
+public class ZipRecords {
+
+	public static class Record {
+		public final long offset;
+		public final long length;
+		public final int crc;
+
+		public Record(long offset, long length, int crc) {
+			this.offset = offset;
+			this.length = length;
+			this.crc = crc;
+		}
+	}
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int EOCD_SIZE = 22;
+
+	/**
+	 * @return the records making up the given file, in order and covering all of it, or null if
+	 * 		it isn't a zip or is one we don't understand (e.g. zip64)
+	 */
+	public static List<Record> read(File f) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+			long len = raf.length();
+			if (len < EOCD_SIZE) return null;
+			// the end of central directory record is followed by a comment of up to 64K
+			int searchLen = (int)Math.min(len, EOCD_SIZE+65535);
+			byte[] tail = new byte[searchLen];
+			raf.seek(len-searchLen);
+			raf.readFully(tail);
+			int eocd = -1;
+			for (int i = searchLen-EOCD_SIZE; i >= 0; i--) {
+				if (readInt(tail, i) == EOCD_SIGNATURE) {
+					eocd = i;
+					break;
+				}
+			}
+			if (eocd == -1) return null;
+			int entries = readShort(tail, eocd+10);
+			long cenSize = readInt(tail, eocd+12)&0xFFFFFFFFL;
+			long cenOffset = readInt(tail, eocd+16)&0xFFFFFFFFL;
+			if (entries == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL) return null;
+			if (cenOffset+cenSize > len) return null;
+			byte[] cen = new byte[(int)cenSize];
+			raf.seek(cenOffset);
+			raf.readFully(cen);
+			TreeSet<Long> starts = new TreeSet<>();
+			starts.add(0L);
+			int p = 0;
+			for (int i = 0; i < entries; i++) {
+				if (p+46 > cen.length || readInt(cen, p) != CEN_SIGNATURE) return null;
+				int nameLen = readShort(cen, p+28);
+				int extraLen = readShort(cen, p+30);
+				int commentLen = readShort(cen, p+32);
+				long localOffset = readInt(cen, p+42)&0xFFFFFFFFL;
+				if (localOffset >= cenOffset) return null;
+				starts.add(localOffset);
+				p += 46+nameLen+extraLen+commentLen;
+			}
+			starts.add(cenOffset);
+			List<Record> out = new ArrayList<>(starts.size());
+			byte[] buf = new byte[16384];
+			CRC32 crc = new CRC32();
+			Long prev = null;
+			for (Long start : starts) {
+				if (prev != null) out.add(record(raf, prev, start, crc, buf));
+				prev = start;
+			}
+			out.add(record(raf, prev, len, crc, buf));
+			return out;
+		}
+	}
+
+	private static Record record(RandomAccessFile raf, long start, long end, CRC32 crc, byte[] buf) throws IOException {
+		crc.reset();
+		raf.seek(start);
+		long remaining = end-start;
+		while (remaining > 0) {
+			int r = raf.read(buf, 0, (int)Math.min(buf.length, remaining));
+			if (r == -1) throw new IOException("Unexpected end of file");
+			crc.update(buf, 0, r);
+			remaining -= r;
+		}
+		return new Record(start, end-start, (int)crc.getValue());
+	}
+
+	private static int readShort(byte[] b, int i) {
+		return (b[i]&0xFF)|((b[i+1]&0xFF)<<8);
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i]&0xFF)|((b[i+1]&0xFF)<<8)|((b[i+2]&0xFF)<<16)|((b[i+3]&0xFF)<<24);
+	}
+
+}
@@ -0,0 +1,204 @@
+package com.unascribed.sup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import com.unascribed.sup.Agent;
+import com.unascribed.sup.data.HashFunction;
+import com.unascribed.sup.util.RequestHelper.DownloadedFile;
+
+/**
+ * A user-level content-addressed store of previously downloaded files, shared between every
+ * working directory on the machine that uses unsup. Entries live at
+ * {@code <cache>/blobs/<func>/<ab>/<hash>}, and are evicted least-recently-used first once the
+ * store grows past {@code blob_cache.max_size} megabytes.
+ * <p>
+ * Entries are always rehashed when they are retrieved, so a corrupted or tampered cache can
+ * only cost us a download, never a bad file.
+ */
+public class BlobCache {
+
+	private static final long DEFAULT_MAX_SIZE_MB = 1024;
+
+	private static boolean initialized = false;
+	private static File dir;
+	private static long maxSize;
+
+	private static synchronized File getDir() {
+		if (!initialized) {
+			initialized = true;
+			if (Agent.config != null && !Agent.config.getBoolean("blob_cache.enabled", true)) {
+				Agent.log("INFO", "Blob cache is disabled by config");
+				return null;
+			}
+			long maxSizeMb = Agent.config == null ? DEFAULT_MAX_SIZE_MB : Agent.config.getInt("blob_cache.max_size", (int)DEFAULT_MAX_SIZE_MB);
+			maxSize = maxSizeMb*RequestHelper.M;
+			File base;
+			if (Agent.config != null && Agent.config.containsKey("blob_cache.path")) {
+				base = new File(Agent.config.get("blob_cache.path"));
+			} else {
+				base = new File(findUserCacheDir(), "unsup");
+			}
+			File candidate = new File(base, "blobs");
+			if (!candidate.isDirectory() && !candidate.mkdirs()) {
+				Agent.log("WARN", "Couldn't create blob cache directory "+candidate+", continuing without it");
+				return null;
+			}
+			dir = candidate;
+			Agent.log("DEBUG", "Using blob cache at "+dir);
+		}
+		return dir;
+	}
+
+	private static File findUserCacheDir() {
+		String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+		String home = System.getProperty("user.home");
+		if (os.contains("win")) {
+			String localAppData = System.getenv("LOCALAPPDATA");
+			if (localAppData != null) return new File(localAppData);
+			return new File(home, "AppData/Local");
+		} else if (os.contains("mac")) {
+			return new File(home, "Library/Caches");
+		}
+		String xdg = System.getenv("XDG_CACHE_HOME");
+		if (xdg != null && !xdg.isEmpty()) return new File(xdg);
+		return new File(home, ".cache");
+	}
+
+	private static File getFile(HashFunction func, String hash) {
+		// insecure functions are trivially collidable, and this store is shared between packs
+		if (func == null || hash == null || func.insecure || hash.length() != func.sizeInHexChars) return null;
+		File dir = getDir();
+		if (dir == null) return null;
+		return new File(dir, func.name().toLowerCase(Locale.ROOT)+"/"+hash.substring(0, 2)+"/"+hash);
+	}
+
+	/**
+	 * Check whether we appear to have the blob with the given hash, without verifying it. Useful
+	 * for deciding what not to bother retrieving in bulk; {@link #get} may still come up empty.
+	 */
+	public static boolean contains(HashFunction func, String hash, long size) {
+		File f = getFile(func, hash);
+		return f != null && f.isFile() && (size == -1 || f.length() == size);
+	}
+
+	/**
+	 * Copy the blob with the given hash into a new temporary file in {@code tmpDir}, if we have it.
+	 * @return the copied and verified file, or {@code null} if the cache doesn't have it
+	 */
+	public static DownloadedFile get(HashFunction func, String hash, long size, File tmpDir) {
+		File f = getFile(func, hash);
+		if (f == null || !f.isFile()) return null;
+		if (size != -1 && f.length() != size) {
+			f.delete();
+			return null;
+		}
+		File out = null;
+		try {
+			out = File.createTempFile("cached", "", tmpDir);
+			MessageDigest digest = func.createMessageDigest();
+			try (InputStream in = new FileInputStream(f); OutputStream os = new FileOutputStream(out)) {
+				byte[] buf = new byte[16384];
+				while (true) {
+					int read = in.read(buf);
+					if (read == -1) break;
+					digest.update(buf, 0, read);
+					os.write(buf, 0, read);
+				}
+			}
+			String actual = Bases.bytesToHex(digest.digest());
+			if (!actual.equals(hash)) {
+				Agent.log("WARN", "Cached blob "+hash+" is corrupt (hashed to "+actual+"), discarding it");
+				f.delete();
+				out.delete();
+				return null;
+			}
+			// used as the "last accessed" time for eviction
+			f.setLastModified(System.currentTimeMillis());
+			File fout = out;
+			Agent.cleanup.add(fout::delete);
+			return new DownloadedFile(hash, out);
+		} catch (IOException e) {
+			Agent.log("WARN", "Failed to retrieve "+hash+" from blob cache", e);
+			if (out != null) out.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Store a copy of a file that has already been verified to have the given hash.
+	 */
+	public static void put(HashFunction func, String hash, File src) {
+		File f = getFile(func, hash);
+		if (f == null || f.isFile()) return;
+		File tmp = null;
+		try {
+			Files.createDirectories(f.getParentFile().toPath());
+			tmp = File.createTempFile(hash, ".tmp", f.getParentFile());
+			Files.copy(src.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			try {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			// another instance may have beaten us to it, which is fine
+			Agent.log("DEBUG", "Failed to store "+hash+" in blob cache", e);
+			if (tmp != null) tmp.delete();
+		}
+	}
+
+	/**
+	 * Evict the least recently used blobs until the cache fits within its size limit.
+	 */
+	public static void trim() {
+		File dir = getDir();
+		if (dir == null) return;
+		List<File> blobs = new ArrayList<>();
+		long total = 0;
+		File[] funcs = dir.listFiles();
+		if (funcs == null) return;
+		for (File func : funcs) {
+			File[] prefixes = func.listFiles();
+			if (prefixes == null) continue;
+			for (File prefix : prefixes) {
+				File[] files = prefix.listFiles();
+				if (files == null) continue;
+				for (File f : files) {
+					if (f.getName().endsWith(".tmp")) {
+						// leftover from a crash, or another instance writing right now; leave recent ones alone
+						if (System.currentTimeMillis()-f.lastModified() > 24*60*60*1000L) f.delete();
+						continue;
+					}
+					blobs.add(f);
+					total += f.length();
+				}
+			}
+		}
+		if (total <= maxSize) return;
+		blobs.sort(Comparator.comparingLong(File::lastModified));
+		int evicted = 0;
+		for (File f : blobs) {
+			if (total <= maxSize) break;
+			long len = f.length();
+			if (f.delete()) {
+				total -= len;
+				evicted++;
+			}
+		}
+		Agent.log("INFO", "Evicted "+evicted+" blob"+(evicted == 1 ? "" : "s")+" from the blob cache to keep it under "+(maxSize/RequestHelper.M)+"M");
+	}
+
+}
@@ -0,0 +1,190 @@
+package com.unascribed.sup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.unascribed.sup.Agent;
+import com.unascribed.sup.data.HashFunction;
+import com.unascribed.sup.handler.AbstractFormatHandler.FileState;
+import com.unascribed.sup.pieces.Chunker;
+import com.unascribed.sup.util.RequestHelper.DownloadedFile;
+
+import okhttp3.Response;
+
+/**
+ * Assembles a file out of content-defined chunks, reusing whichever chunks are already present in
+ * the old version of the file on disk. Runs of chunks that aren't are retrieved with one range
+ * request each out of the remote copy of the whole file, or failing that, one chunk at a time
+ * from {@code chunks/} in the blob store.
+ */
+public class ChunkAssembler {
+
+	/**
+	 * How many chunks may be in flight at once for one file, when they're retrieved one at a time.
+	 */
+	private static final int CHUNK_FETCH_WINDOW = 8;
+
+	/**
+	 * @param remote where the whole of the new version can be retrieved from, or null
+	 * @param src the root of the blob store {@code chunks/} is in
+	 * @return the assembled and verified file, or null if it's not worth assembling because too
+	 * 		little of the local file can be reused
+	 */
+	public static DownloadedFile assemble(File local, URL remote, URL src, List<FileState> chunks, FileState to, File tmpDir) throws IOException {
+		long total = 0;
+		for (FileState c : chunks) total += c.size;
+		if (total != to.size) throw new IOException("Chunk index doesn't add up to the size of the file ("+total+" != "+to.size+")");
+		Map<String, long[]> have = new HashMap<>();
+		if (local.isFile()) {
+			HashFunction func = chunks.get(0).func;
+			try (InputStream in = new FileInputStream(local)) {
+				Chunker.chunk(in, (ofs, buf, len) -> {
+					MessageDigest md = func.createMessageDigest();
+					md.update(buf, 0, len);
+					have.putIfAbsent(Bases.bytesToHex(md.digest()), new long[] {ofs, len});
+				});
+			}
+		}
+		long missing = 0;
+		for (FileState c : chunks) {
+			if (!have.containsKey(c.hash)) missing += c.size;
+		}
+		if (missing > to.size/2) {
+			Agent.log("DEBUG", "Too little of "+local+" can be reused for assembling it from chunks to be worth it");
+			return null;
+		}
+		Agent.log("INFO", "Assembling "+local+" from chunks, "+(missing/RequestHelper.K)+"K of "+(to.size/RequestHelper.K)+"K need to be retrieved");
+		File out = File.createTempFile("assembled", "", tmpDir);
+		Agent.cleanup.add(out::delete);
+		ExecutorService svc = Executors.newFixedThreadPool(CHUNK_FETCH_WINDOW);
+		boolean success = false;
+		try {
+			MessageDigest digest = to.func.createMessageDigest();
+			byte[] buf = new byte[16384];
+			boolean ranges = remote != null && ("http".equals(remote.getProtocol()) || "https".equals(remote.getProtocol()));
+			try (RandomAccessFile raf = local.isFile() ? new RandomAccessFile(local, "r") : null;
+					OutputStream os = new DigestOutputStream(new FileOutputStream(out), digest)) {
+				long pos = 0;
+				int i = 0;
+				while (i < chunks.size()) {
+					FileState c = chunks.get(i);
+					long[] loc = have.get(c.hash);
+					if (loc != null) {
+						raf.seek(loc[0]);
+						copy(raf, os, loc[1], buf, local);
+						pos += c.size;
+						i++;
+						continue;
+					}
+					// coalesce runs of missing chunks into one request
+					int runStart = i;
+					long start = pos;
+					while (i < chunks.size() && !have.containsKey(chunks.get(i).hash)) {
+						pos += chunks.get(i).size;
+						i++;
+					}
+					if (ranges) {
+						Response res;
+						try {
+							res = RequestHelper.requestRange(remote, start, pos);
+						} catch (IOException e) {
+							Agent.log("DEBUG", "Couldn't retrieve a range of "+remote+", retrieving chunks individually", e);
+							ranges = false;
+							res = null;
+						}
+						if (res != null) {
+							try (Response r = res; InputStream in = r.body().byteStream()) {
+								copy(in, os, pos-start, buf, remote);
+							}
+							continue;
+						}
+					}
+					fetchChunks(src, chunks.subList(runStart, i), os, svc);
+				}
+			}
+			String hash = Bases.bytesToHex(digest.digest());
+			if (!hash.equals(to.hash)) {
+				throw new IOException("Assembled "+local+" hashed to "+hash+", but we expected "+to.hash);
+			}
+			success = true;
+			return new DownloadedFile(hash, out);
+		} finally {
+			svc.shutdownNow();
+			if (!success) out.delete();
+		}
+	}
+
+	private static void fetchChunks(URL src, List<FileState> run, OutputStream os, ExecutorService svc) throws IOException {
+		// retrieve a bounded number of chunks ahead of the one we're writing, but always write in order
+		Deque<Future<byte[]>> window = new ArrayDeque<>();
+		Map<String, Future<byte[]>> inFlight = new HashMap<>();
+		int submitted = 0;
+		for (int i = 0; i < run.size(); i++) {
+			while (submitted < run.size() && window.size() < CHUNK_FETCH_WINDOW) {
+				FileState c = run.get(submitted++);
+				// the same chunk may appear more than once in a file
+				window.add(inFlight.computeIfAbsent(c.hash, h -> svc.submit(() -> fetch(src, c))));
+			}
+			os.write(Futures.getUninterruptibly(window.removeFirst()));
+		}
+	}
+
+	private static void copy(RandomAccessFile raf, OutputStream os, long len, byte[] buf, File local) throws IOException {
+		while (len > 0) {
+			int r = raf.read(buf, 0, (int)Math.min(buf.length, len));
+			if (r == -1) throw new IOException(local+" changed while we were reading it");
+			os.write(buf, 0, r);
+			len -= r;
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream os, long len, byte[] buf, URL remote) throws IOException {
+		while (len > 0) {
+			int r = in.read(buf, 0, (int)Math.min(buf.length, len));
+			if (r == -1) throw new IOException("Underread; range of "+remote+" ended "+len+" bytes early");
+			os.write(buf, 0, r);
+			len -= r;
+		}
+	}
+
+	private static byte[] fetch(URL src, FileState c) throws IOException {
+		IOException failure = null;
+		for (URL url : Mirrors.urlsFor(src, "chunks/"+c.hash.substring(0, 2)+"/"+c.hash)) {
+			try {
+				// the last chunk of a file may be tiny, and collectLimited doesn't like tiny limits
+				byte[] data = RequestHelper.downloadToMemory(url, (int)Math.max(c.size, RequestHelper.K));
+				if (data == null || data.length != c.size) throw new IOException("Chunk "+c.hash+" from "+url+" is the wrong size");
+				MessageDigest md = c.func.createMessageDigest();
+				String hash = Bases.bytesToHex(md.digest(data));
+				if (!hash.equals(c.hash)) throw new IOException("Chunk "+c.hash+" from "+url+" hashed to "+hash);
+				Mirrors.recordSuccess(url, data.length, 0);
+				return data;
+			} catch (IOException e) {
+				Mirrors.recordFailure(url);
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		throw failure;
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.unascribed.sup.util;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class Futures {
+
+	/**
+	 * Wait for the given future to complete, ignoring interrupts, and rethrow any IOException or
+	 * unchecked exception it failed with as-is.
+	 */
+	public static <T> T getUninterruptibly(Future<T> future) throws IOException {
+		while (true) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException)cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if (cause instanceof Error) throw (Error)cause;
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	public static void cancelAll(Iterable<? extends Future<?>> futures) {
+		for (Future<?> f : futures) {
+			try {
+				f.cancel(false);
+			} catch (Throwable t) {}
+		}
+	}
+
+}
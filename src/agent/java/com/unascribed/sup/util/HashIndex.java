@@ -0,0 +1,157 @@
+package com.unascribed.sup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.grack.nanojson.JsonObject;
+import com.grack.nanojson.JsonParser;
+import com.grack.nanojson.JsonWriter;
+import com.unascribed.sup.Agent;
+import com.unascribed.sup.data.HashFunction;
+
+/**
+ * Remembers the hashes of files in the working directory, keyed by path and invalidated by any
+ * change to their size, modification time, or file key (inode), so that files that haven't
+ * been touched since the last run don't need to be read again to verify them.
+ */
+public class HashIndex {
+
+	/**
+	 * Files modified more recently than this may still be being written to within the same
+	 * mtime tick, so we don't trust them enough to remember their hash.
+	 */
+	private static final long RACY_WINDOW_MILLIS = 2000;
+
+	private static final File file = new File(".unsup-hash-index.json");
+	private static JsonObject index;
+	private static boolean dirty = false;
+
+	private static synchronized JsonObject getIndex() {
+		if (index == null) {
+			if (file.exists()) {
+				try (InputStream in = new FileInputStream(file)) {
+					index = JsonParser.object().from(in);
+				} catch (Exception e) {
+					Agent.log("WARN", "Couldn't load hash index, everything will be rehashed", e);
+					index = new JsonObject();
+				}
+			} else {
+				index = new JsonObject();
+			}
+		}
+		return index;
+	}
+
+	private static String key(File f) {
+		return f.getPath().replace(File.separatorChar, '/');
+	}
+
+	private static JsonObject describe(File f) throws IOException {
+		BasicFileAttributes attr = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+		JsonObject obj = new JsonObject();
+		obj.put("size", attr.size());
+		obj.put("mtime", attr.lastModifiedTime().toMillis());
+		if (attr.fileKey() != null) obj.put("key", attr.fileKey().toString());
+		return obj;
+	}
+
+	private static boolean sameFile(JsonObject a, JsonObject b) {
+		return a.getLong("size", -1) == b.getLong("size", -2)
+				&& a.getLong("mtime", -1) == b.getLong("mtime", -2)
+				&& String.valueOf(a.get("key")).equals(String.valueOf(b.get("key")));
+	}
+
+	/**
+	 * Return the hash of the given file, reading it only if it's not in the index or has
+	 * changed since it was indexed.
+	 */
+	public static String hash(HashFunction func, File f) throws IOException {
+		String key = key(f);
+		JsonObject before = describe(f);
+		synchronized (HashIndex.class) {
+			JsonObject entry = getIndex().getObject(key);
+			if (entry != null && sameFile(entry, before)) {
+				String hash = entry.getObject("hashes", new JsonObject()).getString(func.name);
+				if (hash != null) return hash;
+			}
+		}
+		String hash = RequestHelper.hash(func, f);
+		JsonObject after = describe(f);
+		if (sameFile(before, after)) {
+			remember(key, after, func, hash, false);
+		}
+		return hash;
+	}
+
+	/**
+	 * Record the hash of a file we just wrote, so it doesn't need to be read next time.
+	 */
+	public static void record(File f, HashFunction func, String hash) {
+		try {
+			// we know what we wrote, so the racy window doesn't apply
+			remember(key(f), describe(f), func, hash, true);
+		} catch (IOException e) {
+			Agent.log("DEBUG", "Failed to index "+f, e);
+		}
+	}
+
+	private static synchronized void remember(String key, JsonObject desc, HashFunction func, String hash, boolean ours) {
+		if (!ours && System.currentTimeMillis()-desc.getLong("mtime") < RACY_WINDOW_MILLIS) {
+			getIndex().remove(key);
+			dirty = true;
+			return;
+		}
+		JsonObject entry = getIndex().getObject(key);
+		if (entry == null || !sameFile(entry, desc)) {
+			entry = desc;
+			entry.put("hashes", new JsonObject());
+			getIndex().put(key, entry);
+		}
+		entry.getObject("hashes").put(func.name, hash);
+		dirty = true;
+	}
+
+	/**
+	 * Summarize the size and modification time of every file in the index, without reading any
+	 * of them. Any change to a file we know the hash of changes the result.
+	 */
+	public static synchronized String fingerprint() {
+		MessageDigest digest = HashFunction.SHA2_256.createMessageDigest();
+		List<String> keys = new ArrayList<>(getIndex().keySet());
+		Collections.sort(keys);
+		for (String key : keys) {
+			File f = new File(key);
+			digest.update((key+"\0"+f.length()+"\0"+f.lastModified()+"\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return Bases.bytesToHex(digest.digest());
+	}
+
+	public static synchronized void save() {
+		if (!dirty) return;
+		Iterator<Map.Entry<String, Object>> iter = getIndex().entrySet().iterator();
+		while (iter.hasNext()) {
+			if (!new File(iter.next().getKey()).isFile()) {
+				iter.remove();
+			}
+		}
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			JsonWriter.on(fos).object(index).done();
+			dirty = false;
+		} catch (IOException e) {
+			Agent.log("WARN", "Failed to save hash index", e);
+		}
+	}
+
+}
@@ -0,0 +1,355 @@
+package com.unascribed.sup.util;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.unascribed.sup.Agent;
+
+/**
+ * Runs tasks that talk to remote hosts, limiting how many may run at once both overall and for
+ * each host. Each host's limit adapts to how it's doing, AIMD-style: every task that succeeds
+ * lets the limit creep up, unless throughput from the host has dropped off (meaning its link is
+ * probably saturated), and the host telling us to slow down with a 429 or 5xx halves it.
+ * <p>
+ * Host limits are shared between every scheduler, as they describe the host, not the work.
+ * <p>
+ * Each host also has a circuit breaker: once enough requests to it in a row have failed, it's
+ * considered down for a while. Requests to it that have a mirror or fallback on another host to
+ * move on to fail immediately, instead of every file finding out for itself; requests that have
+ * nowhere else to go wait out the cooldown. Once it's up, one more failure is enough to open it
+ * again.
+ * <p>
+ * Tasks can also be put off for a while without holding a thread, and paced so a host sees them
+ * spread out rather than all at once.
+ */
+public class HostScheduler {
+
+	private static class Host {
+		final String name;
+		double limit;
+		int inFlight = 0;
+		double rate = -1;
+		double lastRate = -1;
+		int failures = 0;
+		/** System.nanoTime() until which the breaker is open, or 0 if it's never been */
+		long openUntil = 0;
+		/** System.nanoTime() before which no paced task may start */
+		long nextPaced = 0;
+
+		Host(String name, double limit) {
+			this.name = name;
+			this.limit = limit;
+		}
+	}
+
+	private static class Task {
+		final Host host;
+		final FutureTask<?> future;
+
+		Task(Host host, FutureTask<?> future) {
+			this.host = host;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Weight given to each new throughput measurement when updating a host's running average.
+	 */
+	private static final double ALPHA = 0.3;
+
+	private static final Map<String, Host> hosts = new HashMap<>();
+	private static ScheduledExecutorService timer;
+
+	private final ExecutorService pool = Executors.newCachedThreadPool();
+	private final int maxConcurrency;
+	private final List<Task> queue = new ArrayList<>();
+	/** tasks from {@link #submitPaced} that are still waiting for their time to come */
+	private final Map<Task, ScheduledFuture<?>> delayed = new HashMap<>();
+	private int running = 0;
+	private boolean shutdown = false;
+
+	public HostScheduler() {
+		this.maxConcurrency = getConfig("max_concurrency", 24);
+	}
+
+	private static int getConfig(String key, int def) {
+		if (Agent.config == null) return def;
+		return Math.max(1, Agent.config.getInt("download."+key, def));
+	}
+
+	private static Host getHost(String name) {
+		synchronized (hosts) {
+			return hosts.computeIfAbsent(name, n -> new Host(n, getConfig("host_concurrency", 4)));
+		}
+	}
+
+	/**
+	 * Run the given task once both the given URL's host and this scheduler have room for it.
+	 * Tasks for a host are started in the order they were submitted.
+	 * <p>
+	 * This may be called by a running task of this scheduler after {@link #shutdown}, so a task
+	 * can hand off work it couldn't do itself.
+	 */
+	public <T> Future<T> submit(URL url, Callable<T> task) {
+		Host host = getHost(url.getHost() == null ? "" : url.getHost());
+		FutureTask<T> future = wrap(host, task);
+		synchronized (hosts) {
+			if (pool.isShutdown()) throw new IllegalStateException("Scheduler is shut down");
+			queue.add(new Task(host, future));
+			dispatch();
+		}
+		return future;
+	}
+
+	/**
+	 * Like {@link #submit}, but don't queue the given task until at least {@code delayMillis} from
+	 * now, and until at least {@code spacingMillis} after the last paced task for the same host.
+	 * No thread is held while waiting.
+	 * <p>
+	 * Like submit, this may be called by a running task of this scheduler after
+	 * {@link #shutdown}, so a task can hand off the rest of its work for later.
+	 */
+	public <T> Future<T> submitPaced(URL url, long delayMillis, long spacingMillis, Callable<T> task) {
+		Host host = getHost(url.getHost() == null ? "" : url.getHost());
+		FutureTask<T> future = wrap(host, task);
+		Task t = new Task(host, future);
+		synchronized (hosts) {
+			if (pool.isShutdown()) throw new IllegalStateException("Scheduler is shut down");
+			long now = System.nanoTime();
+			long start = now+TimeUnit.MILLISECONDS.toNanos(delayMillis);
+			if (start-host.nextPaced < 0) start = host.nextPaced;
+			host.nextPaced = start+TimeUnit.MILLISECONDS.toNanos(spacingMillis);
+			if (timer == null) {
+				timer = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread th = new Thread(r, "unsup scheduler timer");
+					th.setDaemon(true);
+					return th;
+				});
+			}
+			delayed.put(t, timer.schedule(() -> {
+				synchronized (hosts) {
+					if (delayed.remove(t) == null) return;
+					queue.add(t);
+					dispatch();
+				}
+			}, start-now, TimeUnit.NANOSECONDS));
+		}
+		return future;
+	}
+
+	private <T> FutureTask<T> wrap(Host host, Callable<T> task) {
+		return new FutureTask<>(() -> {
+			boolean success = false;
+			try {
+				T t = task.call();
+				success = true;
+				return t;
+			} finally {
+				release(host, success);
+			}
+		});
+	}
+
+	private void dispatch() {
+		synchronized (hosts) {
+			Iterator<Task> iter = queue.iterator();
+			while (running < maxConcurrency && iter.hasNext()) {
+				Task t = iter.next();
+				if (t.future.isDone()) {
+					// cancelled before it got to run
+					iter.remove();
+					continue;
+				}
+				// tasks for a host that's down will only be talking to its mirrors, so don't hold them back
+				if (!isOpen(t.host) && t.host.inFlight >= Math.max(1, (int)t.host.limit)) continue;
+				iter.remove();
+				t.host.inFlight++;
+				running++;
+				pool.execute(t.future);
+			}
+			if (shutdown && queue.isEmpty() && delayed.isEmpty() && running == 0) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	private void release(Host host, boolean success) {
+		synchronized (hosts) {
+			host.inFlight--;
+			running--;
+			if (success) {
+				// a host that's slowing down as we add connections is already going as fast as it can
+				boolean saturated = host.lastRate >= 0 && host.rate >= 0 && host.lastRate < host.rate/2;
+				int max = getConfig("max_host_concurrency", 16);
+				if (!saturated && host.limit < max) {
+					host.limit = Math.min(max, host.limit+(1/host.limit));
+				}
+			}
+			dispatch();
+		}
+	}
+
+	/**
+	 * Claim up to {@code want} more connections to the given host for a task that's already
+	 * running, such as extra segments of a large download, as far as the host's limit allows.
+	 * Whatever is claimed must be given back with {@link #releaseExtra}.
+	 * @return how many connections were claimed, which may be none
+	 */
+	public static int acquireExtra(String host, int want) {
+		if (host == null || want <= 0) return 0;
+		Host h = getHost(host);
+		synchronized (hosts) {
+			int n = Math.max(0, Math.min(want, Math.max(1, (int)h.limit)-h.inFlight));
+			h.inFlight += n;
+			return n;
+		}
+	}
+
+	/**
+	 * Give back connections claimed with {@link #acquireExtra}. Queued tasks for the host are
+	 * started as other tasks finish, not by this.
+	 */
+	public static void releaseExtra(String host, int n) {
+		if (host == null || n <= 0) return;
+		Host h = getHost(host);
+		synchronized (hosts) {
+			h.inFlight -= n;
+		}
+	}
+
+	/**
+	 * Note how quickly something was retrieved from the given host.
+	 */
+	public static void recordThroughput(String host, long bytes, long nanos) {
+		// small files say more about latency than throughput
+		if (host == null || bytes < 256*RequestHelper.K || nanos <= 0) return;
+		Host h = getHost(host);
+		double rate = bytes/(nanos/1000000000D);
+		synchronized (hosts) {
+			h.lastRate = rate;
+			h.rate = h.rate < 0 ? rate : (h.rate*(1-ALPHA))+(rate*ALPHA);
+		}
+	}
+
+	/**
+	 * Note that the given host asked us to slow down.
+	 */
+	public static void recordThrottle(String host) {
+		if (host == null) return;
+		Host h = getHost(host);
+		synchronized (hosts) {
+			double old = h.limit;
+			h.limit = Math.max(1, h.limit/2);
+			if ((int)old != (int)h.limit) {
+				Agent.log("INFO", "Reducing concurrency for "+h.name+" to "+(int)h.limit);
+			}
+		}
+	}
+
+	/**
+	 * Note that a request to the given host got an answer, however unwelcome.
+	 */
+	public static void recordSuccess(String host) {
+		if (host == null) return;
+		Host h = getHost(host);
+		synchronized (hosts) {
+			if (h.openUntil != 0) {
+				Agent.log("INFO", h.name+" is answering again");
+			}
+			h.failures = 0;
+			h.openUntil = 0;
+		}
+	}
+
+	/**
+	 * Note that a request to the given host failed in a way that suggests the host is in trouble,
+	 * such as a timeout or a server error.
+	 * @return {@code true} if the host's breaker is now open
+	 */
+	public static boolean recordFailure(String host) {
+		if (host == null) return false;
+		Host h = getHost(host);
+		synchronized (hosts) {
+			h.failures++;
+			if (isOpen(h)) return true;
+			// after a cooldown, the breaker is half-open and the first failure trips it again
+			if (h.openUntil != 0 || h.failures >= getConfig("breaker_threshold", 5)) {
+				int cooldown = getConfig("breaker_cooldown", 30);
+				Agent.log("WARN", h.name+" seems to be down, not sending it anything for "+cooldown+" seconds");
+				h.openUntil = System.nanoTime()+TimeUnit.SECONDS.toNanos(cooldown);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the given host's breaker is open, and requests to it should fail
+	 * 		without being made
+	 */
+	public static boolean isDown(String host) {
+		if (host == null) return false;
+		synchronized (hosts) {
+			Host h = hosts.get(host);
+			return h != null && isOpen(h);
+		}
+	}
+
+	/**
+	 * @return how many nanoseconds are left before the given host's breaker lets requests through
+	 * 		again, or 0 if it already does
+	 */
+	public static long downForNanos(String host) {
+		if (host == null) return 0;
+		synchronized (hosts) {
+			Host h = hosts.get(host);
+			return h == null || !isOpen(h) ? 0 : h.openUntil-System.nanoTime();
+		}
+	}
+
+	private static boolean isOpen(Host h) {
+		return h.openUntil != 0 && System.nanoTime()-h.openUntil < 0;
+	}
+
+	/**
+	 * Start no new tasks once the queue has drained.
+	 */
+	public void shutdown() {
+		synchronized (hosts) {
+			shutdown = true;
+			dispatch();
+		}
+	}
+
+	/**
+	 * Abandon all queued tasks and interrupt running ones.
+	 */
+	public void shutdownNow() {
+		synchronized (hosts) {
+			shutdown = true;
+			for (Task t : queue) {
+				t.future.cancel(false);
+			}
+			queue.clear();
+			for (Map.Entry<Task, ScheduledFuture<?>> en : delayed.entrySet()) {
+				en.getValue().cancel(false);
+				en.getKey().future.cancel(false);
+			}
+			delayed.clear();
+			pool.shutdownNow();
+		}
+	}
+
+}
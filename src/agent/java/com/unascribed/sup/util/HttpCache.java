@@ -0,0 +1,144 @@
+package com.unascribed.sup.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.grack.nanojson.JsonObject;
+import com.grack.nanojson.JsonParser;
+import com.grack.nanojson.JsonWriter;
+import com.unascribed.sup.Agent;
+import com.unascribed.sup.data.HashFunction;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Remembers small documents we've retrieved, such as manifests and their signatures, along with
+ * their ETag and Last-Modified, so the next request for them can be made conditional and a 304
+ * answered from here. Entries live in {@code .unsup-http-cache}, named by a hash of their URL.
+ * <p>
+ * Nothing here is trusted; whatever is served from the cache goes through the same signature
+ * checks a fresh response would.
+ */
+public class HttpCache {
+
+	/** anything larger is probably only going to be retrieved once */
+	private static final int MAX_ENTRY_SIZE = 64*RequestHelper.K;
+	private static final int MAX_ENTRIES = 128;
+
+	private static final File dir = new File(".unsup-http-cache");
+
+	public static class Entry {
+		private final File body;
+		public final String etag;
+		public final String lastModified;
+
+		private Entry(File body, String etag, String lastModified) {
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		public void addValidators(Request.Builder bldr) {
+			if (etag != null) bldr.header("If-None-Match", etag);
+			if (lastModified != null) bldr.header("If-Modified-Since", lastModified);
+		}
+
+		/**
+		 * @return the cached body, or null if it's gone missing
+		 */
+		public byte[] read() {
+			try {
+				byte[] data = Files.readAllBytes(body.toPath());
+				// used as the "last accessed" time for eviction
+				body.setLastModified(System.currentTimeMillis());
+				return data;
+			} catch (IOException e) {
+				Agent.log("DEBUG", "Failed to read cached "+body, e);
+				return null;
+			}
+		}
+	}
+
+	private static boolean isEnabled() {
+		return Agent.config == null || Agent.config.getBoolean("http_cache.enabled", true);
+	}
+
+	private static String key(URL url) {
+		return Bases.bytesToHex(HashFunction.SHA2_256.createMessageDigest().digest(url.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * @return what we have cached for the given URL, or null if we have nothing
+	 */
+	public static Entry get(URL url) {
+		if (!isEnabled()) return null;
+		String key = key(url);
+		File body = new File(dir, key);
+		File meta = new File(dir, key+".json");
+		if (!body.isFile() || !meta.isFile()) return null;
+		try (InputStream in = new FileInputStream(meta)) {
+			JsonObject obj = JsonParser.object().from(in);
+			if (!url.toString().equals(obj.getString("url"))) return null;
+			String etag = obj.getString("etag");
+			String lastModified = obj.getString("last_modified");
+			if (etag == null && lastModified == null) return null;
+			return new Entry(body, etag, lastModified);
+		} catch (Exception e) {
+			Agent.log("DEBUG", "Failed to read cache metadata for "+url, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Remember a successful response, if the server gave us something to revalidate it with.
+	 */
+	public static void put(URL url, Response res, byte[] data) {
+		if (!isEnabled() || data.length > MAX_ENTRY_SIZE) return;
+		String etag = res.header("ETag");
+		String lastModified = res.header("Last-Modified");
+		if (etag == null && lastModified == null) return;
+		String key = key(url);
+		try {
+			if (!dir.isDirectory()) dir.mkdirs();
+			try (FileOutputStream fos = new FileOutputStream(new File(dir, key))) {
+				fos.write(data);
+			}
+			JsonObject obj = new JsonObject();
+			obj.put("url", url.toString());
+			if (etag != null) obj.put("etag", etag);
+			if (lastModified != null) obj.put("last_modified", lastModified);
+			try (FileOutputStream fos = new FileOutputStream(new File(dir, key+".json"))) {
+				JsonWriter.on(fos).object(obj).done();
+			}
+			evict();
+		} catch (IOException e) {
+			Agent.log("DEBUG", "Failed to cache "+url, e);
+		}
+	}
+
+	public static void remove(URL url) {
+		String key = key(url);
+		new File(dir, key).delete();
+		new File(dir, key+".json").delete();
+	}
+
+	private static synchronized void evict() {
+		File[] bodies = dir.listFiles((d, name) -> !name.endsWith(".json"));
+		if (bodies == null || bodies.length <= MAX_ENTRIES) return;
+		Arrays.sort(bodies, Comparator.comparingLong(File::lastModified));
+		for (int i = 0; i < bodies.length-MAX_ENTRIES; i++) {
+			bodies[i].delete();
+			new File(dir, bodies[i].getName()+".json").delete();
+		}
+	}
+
+}
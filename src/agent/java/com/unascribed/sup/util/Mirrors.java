@@ -0,0 +1,272 @@
+package com.unascribed.sup.util;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.grack.nanojson.JsonArray;
+import com.grack.nanojson.JsonObject;
+import com.unascribed.sup.Agent;
+import com.unascribed.sup.Util;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Keeps track of the mirrors listed by a manifest and how well each of them has been doing, so
+ * blobs can be retrieved from whichever mirrors are currently fastest. Health is remembered in
+ * the state file across launches, as a probe alone says little about throughput.
+ */
+public class Mirrors {
+
+	private static final long PROBE_TIMEOUT_MILLIS = 5000;
+	/**
+	 * How much slower than the best mirror another mirror can be and still be given a share of
+	 * the downloads.
+	 */
+	private static final double SPREAD_FACTOR = 2;
+	/**
+	 * Weight given to each new measurement when updating the running averages.
+	 */
+	private static final double ALPHA = 0.3;
+
+	public static class Mirror {
+		public final URL base;
+		double latency = -1;
+		double rate = -1;
+		int failures = 0;
+
+		Mirror(URL base) {
+			this.base = base;
+		}
+
+		/**
+		 * @return roughly how long we'd expect retrieving a megabyte from this mirror to take, in
+		 * 		milliseconds
+		 */
+		double cost() {
+			double cost = latency < 0 ? PROBE_TIMEOUT_MILLIS : latency;
+			if (rate > 0) cost += (RequestHelper.M*1000D)/rate;
+			// each consecutive failure halves our faith in a mirror
+			return cost*(1 << Math.min(failures, 10));
+		}
+
+		boolean isHealthy() {
+			return failures < 3;
+		}
+
+		@Override
+		public String toString() {
+			return base+" ("+(latency < 0 ? "?" : (int)latency)+"ms, "+(rate < 0 ? "?" : (int)(rate/RequestHelper.K))+"K/s, "+failures+" failures)";
+		}
+	}
+
+	private static final List<Mirror> mirrors = new ArrayList<>();
+	private static final AtomicInteger nextPick = new AtomicInteger();
+	private static boolean dirty = false;
+
+	/**
+	 * Set up the mirror list for the given source, with the given additional mirror base URLs,
+	 * and probe all of them concurrently to rank them.
+	 */
+	public static void init(URL src, JsonArray extra, ExecutorService svc) throws IOException {
+		List<Mirror> found = new ArrayList<>();
+		found.add(new Mirror(new URL(src, "./")));
+		if (extra != null) {
+			for (Object o : extra) {
+				if (!(o instanceof String)) throw new IOException("Entry "+o+" in mirrors array is not a string");
+				String str = RequestHelper.checkSchemeMismatch(src, (String)o);
+				if (str == null) continue;
+				if (!str.endsWith("/")) str += "/";
+				try {
+					found.add(new Mirror(new URL(str)));
+				} catch (MalformedURLException e) {
+					throw new IOException("Mirror "+str+" is not a valid URL", e);
+				}
+			}
+		}
+		JsonObject health = Agent.state.getObject("mirror_health");
+		if (health != null) {
+			for (Mirror m : found) {
+				JsonObject h = health.getObject(m.base.toString());
+				if (h != null) {
+					m.latency = h.getDouble("latency", -1);
+					m.rate = h.getDouble("rate", -1);
+					m.failures = h.getInt("failures", 0);
+				}
+			}
+		}
+		if (found.size() > 1) {
+			OkHttpClient probeClient = Agent.okhttp().newBuilder()
+					.callTimeout(PROBE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+					.build();
+			List<Future<?>> probes = new ArrayList<>();
+			for (Mirror m : found) {
+				String proto = m.base.getProtocol();
+				if (!"http".equals(proto) && !"https".equals(proto)) continue;
+				probes.add(svc.submit(() -> probe(probeClient, m)));
+			}
+			long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+			for (Future<?> f : probes) {
+				try {
+					f.get(Math.max(0, deadline-System.nanoTime()), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException | InterruptedException e) {
+					f.cancel(true);
+				} catch (Exception e) {
+					// probe() doesn't throw
+				}
+			}
+		}
+		synchronized (mirrors) {
+			mirrors.clear();
+			mirrors.addAll(found);
+			sort();
+			if (mirrors.size() > 1) {
+				Agent.log("INFO", "Mirrors, best first:");
+				for (Mirror m : mirrors) {
+					Agent.log("INFO", "- "+m);
+				}
+			}
+		}
+	}
+
+	private static void probe(OkHttpClient client, Mirror m) {
+		long start = System.nanoTime();
+		try (Response res = client.newCall(new Request.Builder()
+				.url(m.base)
+				.header("User-Agent", "unsup/"+Util.VERSION+" (+https://git.sleeping.town/unascribed/unsup)")
+				.head()
+				.build()).execute()) {
+			// any response at all means the mirror is up; most won't serve anything at their root
+			recordLatency(m, (System.nanoTime()-start)/1000000D);
+			synchronized (mirrors) {
+				// being up doesn't mean it's serving good files, so only forgive one failure
+				if (m.failures > 0) m.failures--;
+			}
+		} catch (IOException e) {
+			Agent.log("DEBUG", "Mirror "+m.base+" failed its probe", e);
+			synchronized (mirrors) {
+				m.failures++;
+				dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Put the healthy mirrors first, cheapest first, followed by the unhealthy ones. Called with
+	 * the lock held whenever a mirror's health changes, so a mirror that goes bad partway through
+	 * an update stops being handed out first.
+	 */
+	private static void sort() {
+		mirrors.sort(Comparator.comparing((Mirror m) -> !m.isHealthy()).thenComparingDouble(Mirror::cost));
+	}
+
+	/**
+	 * @return URLs for the given path on every known mirror, best first, with the first one
+	 * 		rotated between the healthy mirrors that are nearly as good as the best one so that
+	 * 		downloads are spread out between them; if none are healthy, the least bad is first
+	 */
+	public static List<URL> urlsFor(URL src, String path) throws MalformedURLException {
+		List<URL> out = new ArrayList<>();
+		synchronized (mirrors) {
+			if (mirrors.isEmpty()) {
+				out.add(new URL(src, path));
+				return out;
+			}
+			double best = mirrors.get(0).cost();
+			int eligible = 0;
+			for (Mirror m : mirrors) {
+				if (!m.isHealthy() || m.cost() > best*SPREAD_FACTOR) break;
+				eligible++;
+			}
+			int first = eligible <= 1 ? 0 : Math.floorMod(nextPick.getAndIncrement(), eligible);
+			out.add(new URL(mirrors.get(first).base, path));
+			for (int i = 0; i < mirrors.size(); i++) {
+				if (i != first) out.add(new URL(mirrors.get(i).base, path));
+			}
+		}
+		return out;
+	}
+
+	private static Mirror find(URL url) {
+		String s = url.toString();
+		Mirror found = null;
+		for (Mirror m : mirrors) {
+			String base = m.base.toString();
+			if (s.startsWith(base) && (found == null || base.length() > found.base.toString().length())) {
+				found = m;
+			}
+		}
+		return found;
+	}
+
+	private static void recordLatency(Mirror m, double millis) {
+		synchronized (mirrors) {
+			m.latency = m.latency < 0 ? millis : (m.latency*(1-ALPHA))+(millis*ALPHA);
+			dirty = true;
+			sort();
+		}
+	}
+
+	/**
+	 * Note that a download from the given URL succeeded, if it belongs to a mirror.
+	 */
+	public static void recordSuccess(URL url, long bytes, long nanos) {
+		synchronized (mirrors) {
+			Mirror m = find(url);
+			if (m == null) return;
+			m.failures = 0;
+			// small files say more about latency than throughput
+			if (bytes >= 256*RequestHelper.K && nanos > 0) {
+				double rate = bytes/(nanos/1000000000D);
+				m.rate = m.rate < 0 ? rate : (m.rate*(1-ALPHA))+(rate*ALPHA);
+			}
+			dirty = true;
+			sort();
+		}
+	}
+
+	/**
+	 * Note that a download from the given URL failed, if it belongs to a mirror.
+	 */
+	public static void recordFailure(URL url) {
+		synchronized (mirrors) {
+			Mirror m = find(url);
+			if (m == null) return;
+			m.failures++;
+			dirty = true;
+			sort();
+		}
+	}
+
+	/**
+	 * Write the health of every mirror into the given state object.
+	 * @return {@code true} if anything changed since the state was loaded
+	 */
+	public static boolean updateState(JsonObject state) {
+		synchronized (mirrors) {
+			if (!dirty) return false;
+			JsonObject health = new JsonObject();
+			for (Mirror m : mirrors) {
+				JsonObject h = new JsonObject();
+				if (m.latency >= 0) h.put("latency", m.latency);
+				if (m.rate >= 0) h.put("rate", m.rate);
+				h.put("failures", m.failures);
+				health.put(m.base.toString(), h);
+			}
+			state.put("mirror_health", health);
+			dirty = false;
+			return true;
+		}
+	}
+
+}
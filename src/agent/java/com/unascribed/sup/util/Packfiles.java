@@ -0,0 +1,136 @@
+package com.unascribed.sup.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+import com.unascribed.sup.Agent;
+import com.unascribed.sup.handler.AbstractFormatHandler.FilePlan;
+import com.unascribed.sup.handler.AbstractFormatHandler.FileState;
+import com.unascribed.sup.util.RequestHelper.DownloadedFile;
+
+import okhttp3.Response;
+
+/**
+ * Retrieves small files out of a packfile: the blobs of one version concatenated together, with
+ * each file's offset given in the manifest. Files that are near each other in the pack are
+ * retrieved with one range request.
+ */
+public class Packfiles {
+
+	/**
+	 * How many bytes of files we don't want we'll put up with between files we do want, rather
+	 * than making another request.
+	 */
+	private static final long MAX_GAP = 16*RequestHelper.K;
+	private static final long MAX_RANGE = 8*RequestHelper.M;
+
+	/**
+	 * Split the given files, all in the same pack, into groups that can each be retrieved with
+	 * one request.
+	 */
+	public static List<List<FilePlan>> coalesce(List<FilePlan> files) {
+		List<FilePlan> sorted = new ArrayList<>(files);
+		sorted.sort(Comparator.comparingLong(f -> f.packOffset));
+		List<List<FilePlan>> out = new ArrayList<>();
+		List<FilePlan> cur = null;
+		long start = 0;
+		long end = 0;
+		for (FilePlan f : sorted) {
+			long fEnd = f.packOffset+f.state.size;
+			if (cur == null || f.packOffset-end > MAX_GAP || fEnd-start > MAX_RANGE) {
+				cur = new ArrayList<>();
+				out.add(cur);
+				start = f.packOffset;
+				end = fEnd;
+			}
+			cur.add(f);
+			end = Math.max(end, fEnd);
+		}
+		return out;
+	}
+
+	/**
+	 * Retrieve one group of files from {@link #coalesce}.
+	 * @return the files that were retrieved and matched their hash; any others will need to be
+	 * 		downloaded individually
+	 */
+	public static Map<FilePlan, DownloadedFile> fetch(URL pack, List<FilePlan> files, File tmpDir, LongConsumer addProgress) {
+		long start = files.get(0).packOffset;
+		long end = 0;
+		for (FilePlan f : files) end = Math.max(end, f.packOffset+f.state.size);
+		Map<FilePlan, DownloadedFile> out = new IdentityHashMap<>();
+		byte[] buf = new byte[16384];
+		try (Response res = RequestHelper.requestRange(pack, start, end);
+				InputStream in = res.body().byteStream()) {
+			long pos = start;
+			FilePlan prev = null;
+			for (FilePlan f : files) {
+				FileState to = f.state;
+				if (f.packOffset < pos) {
+					// the same blob is used by more than one file; each needs its own copy, as
+					// they're moved into place
+					DownloadedFile prevDf = prev == null ? null : out.get(prev);
+					if (prevDf != null && f.packOffset == prev.packOffset && to.hash.equals(prev.state.hash)) {
+						File copy = File.createTempFile("packed", "", tmpDir);
+						Agent.cleanup.add(copy::delete);
+						Files.copy(prevDf.file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						out.put(f, new DownloadedFile(prevDf.hash, copy));
+						addProgress.accept(to.size);
+					}
+					continue;
+				}
+				skip(in, f.packOffset-pos, buf);
+				File file = File.createTempFile("packed", "", tmpDir);
+				Agent.cleanup.add(file::delete);
+				MessageDigest digest = to.func.createMessageDigest();
+				try (OutputStream os = new FileOutputStream(file)) {
+					long remaining = to.size;
+					while (remaining > 0) {
+						int r = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+						if (r == -1) throw new EOFException("Range of "+pack+" ended early");
+						os.write(buf, 0, r);
+						digest.update(buf, 0, r);
+						remaining -= r;
+					}
+				}
+				pos = f.packOffset+to.size;
+				prev = f;
+				String hash = Bases.bytesToHex(digest.digest());
+				if (!hash.equals(to.hash)) {
+					Agent.log("WARN", "Entry at "+f.packOffset+" in "+pack+" hashed to "+hash+", but we expected "+to.hash);
+					file.delete();
+					continue;
+				}
+				out.put(f, new DownloadedFile(hash, file));
+				addProgress.accept(to.size);
+			}
+		} catch (IOException e) {
+			// keep whatever we got before things went wrong
+			Agent.log("WARN", "Failed to retrieve files from "+pack+", will download the rest individually", e);
+		}
+		return out;
+	}
+
+	private static void skip(InputStream in, long n, byte[] buf) throws IOException {
+		while (n > 0) {
+			int r = in.read(buf, 0, (int)Math.min(buf.length, n));
+			if (r == -1) throw new EOFException();
+			n -= r;
+		}
+	}
+
+}
@@ -9,20 +9,38 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
 import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
 import com.grack.nanojson.JsonObject;
 import com.grack.nanojson.JsonParser;
 import com.grack.nanojson.JsonParserException;
@@ -30,7 +48,9 @@ import com.moandjiezana.toml.Toml;
 import com.unascribed.sup.Agent;
 import com.unascribed.sup.Util;
 import com.unascribed.sup.data.HashFunction;
+import com.unascribed.sup.pieces.CancellationSignal;
 
+import okhttp3.Call;
 import okhttp3.Request;
 import okhttp3.Response;
 
@@ -59,27 +79,176 @@ public class RequestHelper {
 		return ok ? url : null;
 	}
 	
+	/**
+	 * A pool for small requests made concurrently with others, such as signatures. Daemon, so it
+	 * doesn't need to be shut down.
+	 */
+	private static final ExecutorService background = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "unsup background request");
+		t.setDaemon(true);
+		return t;
+	});
+	
 	public static byte[] loadAndVerify(URL src, int sizeLimit, URL sigUrl) throws IOException {
-		byte[] resp = downloadToMemory(src, sizeLimit);
+		// fetch the signature alongside the document rather than after it
+		Future<byte[]> sigFuture = null;
+		if (Agent.packSig != null && sigUrl != null) {
+			sigFuture = background.submit(() -> downloadToMemory(sigUrl, 512, true));
+		}
+		byte[] resp;
+		try {
+			resp = downloadToMemory(src, sizeLimit, true);
+		} catch (IOException | RuntimeException e) {
+			if (sigFuture != null) sigFuture.cancel(true);
+			throw e;
+		}
 		if (resp == null) {
+			if (sigFuture != null) sigFuture.cancel(true);
 			throw new IOException(src+" is larger than "+(sizeLimit/K)+"K, refusing to continue downloading");
 		}
+		if (sigFuture != null) verify(src, resp, sigUrl, sigFuture);
+		return resp;
+	}
+	
+	/**
+	 * Thrown when a document that should be signed has no signature at all, as opposed to one
+	 * that's invalid. Callers that have another signed form of the document to fall back on may
+	 * catch this; anyone else should treat it like any other validation failure.
+	 */
+	public static final class MissingSignatureException extends IOException {
+		public MissingSignatureException(String msg, Throwable cause) {
+			super(msg, cause);
+		}
+	}
+	
+	private static void verify(URL src, byte[] data, URL sigUrl, Future<byte[]> sigFuture) throws IOException {
+		byte[] sigResp;
+		try {
+			sigResp = Futures.getUninterruptibly(sigFuture);
+		} catch (FileNotFoundException e) {
+			throw new MissingSignatureException("Failed to validate signature for "+src+", as "+sigUrl+" is missing", e);
+		} catch (Throwable t) {
+			throw new IOException("Failed to validate signature for "+src, t);
+		}
+		try {
+			if (!Agent.packSig.verify(data, sigResp)) {
+				throw new SignatureException("Signature is invalid");
+			} else {
+				Agent.log("DEBUG", "Signature for "+src+" (retrieved from "+sigUrl+") is valid");
+			}
+		} catch (Throwable t) {
+			throw new IOException("Failed to validate signature for "+src, t);
+		}
+	}
+
+	public interface StreamParser<T> {
+		T parse(InputStream in) throws IOException;
+	}
+	
+	/**
+	 * Like {@link #loadAndVerify}, but hands the document to the given parser as it arrives rather
+	 * than collecting it and then parsing it. If there's a signature to check, the raw bytes are
+	 * kept as they stream past and checked once the parser is done, and whatever the parser built
+	 * is only returned if the signature is valid. If there isn't, nothing is kept.
+	 */
+	public static <T> T streamAndVerify(URL src, int sizeLimit, URL sigUrl, StreamParser<T> parser) throws IOException {
+		Future<byte[]> sigFuture = null;
 		if (Agent.packSig != null && sigUrl != null) {
-			try {
-				byte[] sigResp = downloadToMemory(sigUrl, 512);
-				if (!Agent.packSig.verify(resp, sigResp)) {
-					throw new SignatureException("Signature is invalid");
-				} else {
-					Agent.log("DEBUG", "Signature for "+src+" (retrieved from "+sigUrl+") is valid");
+			sigFuture = background.submit(() -> downloadToMemory(sigUrl, 512));
+		}
+		boolean retain = sigFuture != null;
+		ByteArrayOutputStream[] retained = new ByteArrayOutputStream[1];
+		T result;
+		try {
+			result = withRetries(10, () -> {
+				retained[0] = retain ? new ByteArrayOutputStream() : null;
+				try (InputStream in = new LimitedTeeInputStream(get(src), src, sizeLimit, retained[0])) {
+					T t = parser.parse(in);
+					// the signature covers all of it, even anything the parser didn't care about
+					byte[] buf = new byte[4096];
+					while (in.read(buf) != -1) {}
+					return t;
+				} catch (SocketTimeoutException e) {
+					throw new Retry("Connection to "+src.getHost()+" timed out",
+							SocketTimeoutException::new);
 				}
-			} catch (Throwable t) {
-				throw new IOException("Failed to validate signature for "+src, t);
-			}
+			});
+		} catch (IOException | RuntimeException e) {
+			if (sigFuture != null) sigFuture.cancel(true);
+			throw e;
+		}
+		if (sigFuture != null) verify(src, retained[0].toByteArray(), sigUrl, sigFuture);
+		return result;
+	}
+	
+	private static class LimitedTeeInputStream extends InputStream {
+		private final InputStream in;
+		private final URL src;
+		private final long limit;
+		private final OutputStream copy;
+		private long read = 0;
+		
+		public LimitedTeeInputStream(InputStream in, URL src, long limit, OutputStream copy) {
+			this.in = in;
+			this.src = src;
+			this.limit = limit;
+			this.copy = copy;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0]&0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = in.read(b, off, len);
+			if (r == -1) return -1;
+			read += r;
+			if (read > limit) throw new IOException(src+" is larger than "+(limit < K ? limit+" bytes" : (limit/K)+"K")+", refusing to continue downloading");
+			if (copy != null) copy.write(b, off, r);
+			return r;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
 		}
-		return resp;
 	}
 
 	public static byte[] downloadToMemory(URL url, int sizeLimit) throws IOException {
+		return downloadToMemory(url, sizeLimit, false);
+	}
+	
+	/**
+	 * @param cache if true, make the request conditional on what's in the {@link HttpCache}, if
+	 * 		anything, and answer a 304 from there
+	 */
+	private static byte[] downloadToMemory(URL url, int sizeLimit, boolean cache) throws IOException {
+		if (cache && !"file".equals(url.getProtocol())) {
+			return withRetries(10, () -> {
+				HttpCache.Entry cached = HttpCache.get(url);
+				try (Response res = request(url, false, cached == null ? null : cached::addValidators)) {
+					if (res.code() == 304) {
+						byte[] data = cached == null ? null : cached.read();
+						if (data != null && data.length <= sizeLimit) {
+							Agent.log("DEBUG", url+" is unchanged, using cached copy");
+							return data;
+						}
+						// we don't have what the server thinks we do; ask again, unconditionally
+						HttpCache.remove(url);
+						return downloadToMemory(url, sizeLimit, false);
+					}
+					byte[] data = RequestHelper.collectLimited(res.body().byteStream(), sizeLimit);
+					if (data != null && res.code() == 200) HttpCache.put(url, res, data);
+					return data;
+				} catch (SocketTimeoutException e) {
+					throw new Retry("Connection to "+url.getHost()+" timed out",
+							SocketTimeoutException::new);
+				}
+			});
+		}
 		return withRetries(10, () -> {
 			try {
 				InputStream conn = get(url);
@@ -95,6 +264,31 @@ public class RequestHelper {
 	private static String currentFirefoxVersion;
 	private static final Set<String> alwaysHostile = new HashSet<>(Arrays.asList(Bases.b64ToString("YmV0YS5jdXJzZWZvcmdlLmNvbXx3d3cuY3Vyc2Vmb3JnZS5jb218Y3Vyc2Vmb3JnZS5jb218bWluZWNyYWZ0LmN1cnNlZm9yZ2UuY29tfG1lZGlhZmlsZXouZm9yZ2VjZG4ubmV0fG1lZGlhZmlsZXMuZm9yZ2VjZG4ubmV0fGZvcmdlY2RuLm5ldHxlZGdlLmZvcmdlY2RuLm5ldA==").split("\\|")));
 
+	/**
+	 * Ask the server how large the given file is, without retrieving it or retrying.
+	 * @return the size of the file, or -1 if it couldn't be determined
+	 */
+	public static long contentLength(URL url) {
+		try {
+			if ("file".equals(url.getProtocol())) {
+				File f = new File(url.toURI());
+				return f.isFile() ? f.length() : -1;
+			}
+			try (Response res = Agent.okhttp().newCall(new Request.Builder()
+					.url(url)
+					.header("User-Agent", "unsup/"+Util.VERSION+" (+https://git.sleeping.town/unascribed/unsup)")
+					.head()
+					.build()).execute()) {
+				if (res.code()/100 != 2) return -1;
+				String len = res.header("Content-Length");
+				return len == null ? -1 : Long.parseLong(len);
+			}
+		} catch (IOException | URISyntaxException | IllegalArgumentException e) {
+			Agent.log("DEBUG", "Failed to find size of "+url, e);
+			return -1;
+		}
+	}
+
 	public static InputStream get(URL url) throws IOException {
 		return get(url, false);
 	}
@@ -107,6 +301,24 @@ public class RequestHelper {
 				throw new IOException(e);
 			}
 		}
+		return request(url, hostile, null).body().byteStream();
+	}
+
+	/**
+	 * Like {@link #get(URL, boolean)}, but the returned stream throws once more than
+	 * {@code sizeLimit} bytes have been read from it.
+	 */
+	public static InputStream get(URL url, boolean hostile, long sizeLimit) throws IOException {
+		return new LimitedTeeInputStream(get(url, hostile), url, sizeLimit, null);
+	}
+	
+	/**
+	 * Make an HTTP GET request, retrying on transient failures. The response is returned for any
+	 * 2xx code, and for 304 and 416, which only make sense in reply to conditional or ranged
+	 * requests made by the customizer. The caller is responsible for closing it.
+	 * @param customizer optional callback to add extra headers to the request
+	 */
+	public static Response request(URL url, boolean hostile, Consumer<Request.Builder> customizer) throws IOException {
 		if (!hostile && alwaysHostile.contains(url.getHost())) {
 			hostile = true;
 		}
@@ -128,6 +340,20 @@ public class RequestHelper {
 		}
 		final boolean fhostile = hostile;
 		return RequestHelper.withRetries(10, () -> {
+			long down = HostScheduler.downForNanos(url.getHost());
+			if (down > 0) {
+				if (canFailOver.get()) throw new IOException(url.getHost()+" is down, not requesting "+url);
+				// nowhere else to go, so wait until the host is given another chance
+				long dl = deadline;
+				if (dl != 0 && System.nanoTime()+down-dl > 0) throw new IOException(url.getHost()+" is down, and we're out of time to wait for it");
+				Agent.log("INFO", url.getHost()+" is down, waiting "+TimeUnit.NANOSECONDS.toSeconds(down+999999999)+" seconds before trying it again");
+				try {
+					TimeUnit.NANOSECONDS.sleep(down);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for "+url.getHost());
+				}
+			}
+			Call call = null;
 			try {
 				Request.Builder reqbldr = new Request.Builder()
 						.url(url)
@@ -146,26 +372,60 @@ public class RequestHelper {
 					reqbldr.header("Sec-Fetch-User", "?1");
 					reqbldr.header("TE", "trailers");
 				}
-				Response res = Agent.okhttp.newCall(reqbldr.build()).execute();
-				if (res.code() != 200) {
-					if (res.code() == 404 || res.code() == 410) throw new FileNotFoundException(url.toString());
+				if (customizer != null) customizer.accept(reqbldr);
+				call = Agent.okhttp().newCall(reqbldr.build());
+				long dl = deadline;
+				if (dl != 0) {
+					long remaining = dl-System.nanoTime();
+					if (remaining <= 0) throw new SocketTimeoutException("Out of time for "+url);
+					long timeout = call.timeout().timeoutNanos();
+					call.timeout().timeout(timeout == 0 ? remaining : Math.min(timeout, remaining), TimeUnit.NANOSECONDS);
+				}
+				Response res = call.execute();
+				anyResponse = true;
+				if (res.code()/100 != 5) HostScheduler.recordSuccess(url.getHost());
+				if (res.code()/100 != 2 && res.code() != 304 && res.code() != 416) {
+					if (res.code() == 404 || res.code() == 410) {
+						res.close();
+						throw new FileNotFoundException(url.toString());
+					}
 					byte[] b = RequestHelper.collectLimited(res.body().byteStream(), 512);
 					String s = b == null ? "(response too long)" : new String(b, StandardCharsets.UTF_8);
 					res.close();
-					if (res.code()/100 == 500) {
-						throw new Retry(url.getHost()+" responded with a server error for "+url+" ("+res.code()+")",
-								new IOException("Received non-200 response from server for "+url+": "+res.code()+"\n"+s));
+					if (res.code()/100 == 5 || res.code() == 429) {
+						HostScheduler.recordThrottle(url.getHost());
+						IOException ioe = new IOException("Received non-200 response from server for "+url+": "+res.code()+"\n"+s);
+						if (res.code() != 429 && HostScheduler.recordFailure(url.getHost()) && canFailOver.get()) throw ioe;
+						throw new Retry(url.getHost()+" responded with "+(res.code() == 429 ? "too many requests" : "a server error")+" for "+url+" ("+res.code()+")",
+								ioe);
 					} else {
 						throw new IOException("Received non-200 response from server for "+url+": "+res.code()+"\n"+s);
 					}
 				}
-				return res.body().byteStream();
+				return res;
 			} catch (InterruptedIOException e) {
+				// losing a race, being cancelled, or running out of time isn't the host's fault
+				long dl = deadline;
+				boolean hostsFault = e instanceof SocketTimeoutException
+						&& !Thread.currentThread().isInterrupted()
+						&& (call == null || !call.isCanceled())
+						&& (dl == 0 || System.nanoTime()-dl < 0);
+				if (hostsFault && HostScheduler.recordFailure(url.getHost()) && canFailOver.get()) throw e;
 				throw new Retry("Connection to "+url.getHost()+" timed out",
 						e);
-			} catch (UnknownHostException e) {
-				throw new Retry("DNS resolution of "+url.getHost()+" failed",
-						e);
+			} catch (UnknownHostException | ConnectException | NoRouteToHostException e) {
+				if (!anyResponse) {
+					// nothing has worked yet, so waiting around for it to start working isn't likely
+					// to get us anywhere
+					Agent.log("WARN", "Couldn't reach "+url.getHost()+", we may be offline");
+					throw e;
+				}
+				if (HostScheduler.recordFailure(url.getHost()) && canFailOver.get()) throw e;
+				if (e instanceof UnknownHostException) {
+					throw new Retry("DNS resolution of "+url.getHost()+" failed",
+							e);
+				}
+				throw e;
 			}
 		});
 	}
@@ -183,25 +443,141 @@ public class RequestHelper {
 		T call() throws E, Retry;
 	}
 	
+	/**
+	 * The retries used so far and the most allowed by any withRetries call on this thread, shared
+	 * by nested calls so they don't multiply each other's retries.
+	 */
+	private static final ThreadLocal<int[]> retryBudget = new ThreadLocal<>();
+	/**
+	 * Retries available to every thread, AWS-style: each retry takes a token, and each success
+	 * puts a fraction of one back, so when something is failing across the board we give up
+	 * rather than every download retrying in turn. Tokens also trickle back in over time, so a bad
+	 * spell early in a long update doesn't leave nothing for later.
+	 */
+	private static double retryTokens = -1;
+	private static long retryTokensRefilled;
+	private static final Object retryTokensLock = new Object();
+	private static final double RETRY_REFUND = 0.1;
+	private static final int DEFAULT_RETRY_BUDGET = 200;
+	/** tokens regained per second */
+	private static final double DEFAULT_RETRY_REFILL = 2;
+	private static final long RETRY_BASE_MILLIS = 1000;
+	private static final long RETRY_CAP_MILLIS = 30000;
+	/**
+	 * Whether whatever this thread is retrieving is also available from another host, so requests
+	 * to a host that's down may fail immediately rather than waiting for it.
+	 */
+	private static final ThreadLocal<Boolean> canFailOver = ThreadLocal.withInitial(() -> false);
+	/** System.nanoTime() past which nothing is retried and requests are cut short, or 0 for none */
+	private static volatile long deadline = 0;
+	/** whether any server has answered us yet, until which we assume we may be offline */
+	private static volatile boolean anyResponse = false;
+	
+	public static void setCanFailOver(boolean b) {
+		if (b) {
+			canFailOver.set(true);
+		} else {
+			canFailOver.remove();
+		}
+	}
+	
+	public static void setDeadline(long nanoTime) {
+		deadline = nanoTime;
+	}
+	
+	public static void clearDeadline() {
+		deadline = 0;
+	}
+	
+	private static int getRetryBudget() {
+		return Agent.config == null ? DEFAULT_RETRY_BUDGET : Math.max(0, Agent.config.getInt("retry_budget", DEFAULT_RETRY_BUDGET));
+	}
+	
+	private static double getRetryRefill() {
+		return Agent.config == null ? DEFAULT_RETRY_REFILL : Math.max(0, Agent.config.getDouble("retry_budget_refill", DEFAULT_RETRY_REFILL));
+	}
+	
+	/**
+	 * Add whatever tokens have trickled in since we last looked. Must hold the lock.
+	 */
+	private static void refillRetryTokens() {
+		long now = System.nanoTime();
+		if (retryTokens < 0) {
+			retryTokens = getRetryBudget();
+		} else {
+			double secs = (now-retryTokensRefilled)/1000000000D;
+			retryTokens = Math.min(getRetryBudget(), retryTokens+(secs*getRetryRefill()));
+		}
+		retryTokensRefilled = now;
+	}
+	
+	private static boolean takeRetryToken() {
+		synchronized (retryTokensLock) {
+			refillRetryTokens();
+			if (retryTokens < 1) return false;
+			retryTokens--;
+			return true;
+		}
+	}
+	
+	private static void refundRetryToken() {
+		synchronized (retryTokensLock) {
+			if (retryTokens < 0) return;
+			refillRetryTokens();
+			retryTokens = Math.min(getRetryBudget(), retryTokens+RETRY_REFUND);
+		}
+	}
+	
+	/**
+	 * Call the given callable, calling it again after a randomized, growing delay each time it
+	 * throws {@link Retry}. Calls nested within the callable share its retries rather than getting
+	 * their own, so the most retries made in total is the largest {@code tries} involved, and all
+	 * threads draw on one shared budget of retries.
+	 */
 	public static <T, E extends Throwable> T withRetries(int tries, RetryCallable<T, E> call) throws E {
-		int secs = 1;
-		while (true) {
-			boolean canRetry = tries > 0;
-			tries--;
-			try {
-				return call.call();
-			} catch (Retry r) {
-				if (canRetry) {
-					Agent.log("WARN", r.getMessage()+". Trying again in "+secs+" second"+(secs == 1 ? "" : "s")
-							+", "+(tries == 0 ? "final retry" : tries+" retr"+(tries == 1 ? "y" : "ies")+" left"));
-					try {
-						TimeUnit.SECONDS.sleep(secs);
-					} catch (InterruptedException ignore) {}
-					secs += (secs+2)/3;
-				} else {
-					throw (E)r.getCause();
+		int[] budget = retryBudget.get();
+		boolean outermost = budget == null;
+		if (outermost) {
+			budget = new int[] {0, tries};
+			retryBudget.set(budget);
+		} else {
+			budget[1] = Math.max(budget[1], tries);
+		}
+		try {
+			long millis = RETRY_BASE_MILLIS;
+			while (true) {
+				try {
+					T t = call.call();
+					if (outermost) refundRetryToken();
+					return t;
+				} catch (Retry r) {
+					int left = budget[1]-budget[0];
+					// "decorrelated jitter"; keeps threads that failed together from retrying together
+					millis = Math.min(RETRY_CAP_MILLIS, ThreadLocalRandom.current().nextLong(RETRY_BASE_MILLIS, (millis*3)+1));
+					long dl = deadline;
+					if (left > 0 && dl != 0 && System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(millis) > dl) {
+						Agent.log("WARN", r.getMessage()+". Out of time to try again");
+						throw (E)r.getCause();
+					}
+					if (left > 0 && !takeRetryToken()) {
+						Agent.log("WARN", r.getMessage()+". Too many things are failing to try again");
+						throw (E)r.getCause();
+					}
+					if (left > 0) {
+						budget[0]++;
+						left--;
+						Agent.log("WARN", r.getMessage()+". Trying again in "+((millis+50)/100)/10D+" seconds"
+								+", "+(left == 0 ? "final retry" : left+" retr"+(left == 1 ? "y" : "ies")+" left"));
+						try {
+							TimeUnit.MILLISECONDS.sleep(millis);
+						} catch (InterruptedException ignore) {}
+					} else {
+						throw (E)r.getCause();
+					}
 				}
 			}
+		} finally {
+			if (outermost) retryBudget.remove();
 		}
 	}
 	
@@ -244,24 +620,152 @@ public class RequestHelper {
 		}
 	}
 	
-	public static DownloadedFile downloadToFile(URL url, File dir, long size, LongConsumer addProgress, Runnable updateProgress, HashFunction hashFunc, boolean hostile) throws IOException {
-		File file = File.createTempFile("download", "", dir);
-		Agent.cleanup.add(file::delete);
+	/** Partials currently being written to, so two plans for the same blob don't share one. */
+	private static final Set<String> activePartials = new HashSet<>();
+	
+	/**
+	 * @param expectedHash if non-null, a download that matches this hash will be added to the blob
+	 * 		cache, and the download will be kept in {@code dir} across attempts and runs so it can
+	 * 		be resumed; checking the cache first is up to the caller
+	 * @param gzipped if true, the URL serves a gzip of the file; it will be decompressed as it's
+	 * 		downloaded, and the size, hash and progress all refer to the decompressed data
+	 * @param cancel optional signal that abandons the download, failing with a CancelledException
+	 */
+	public static DownloadedFile downloadToFile(URL url, File dir, long size, LongConsumer addProgress, Runnable updateProgress, HashFunction hashFunc, String expectedHash, boolean hostile, boolean gzipped, CancellationSignal cancel) throws IOException {
+		// a partial of a compressed download can't be resumed, as we don't know how far into the
+		// compressed stream the decompressed data on disk got
+		String partialKey = expectedHash == null || gzipped ? null : hashFunc.name().toLowerCase(Locale.ROOT)+"-"+expectedHash;
+		if (partialKey != null) {
+			synchronized (activePartials) {
+				if (!activePartials.add(partialKey)) partialKey = null;
+			}
+		}
+		File file;
+		File validatorFile;
+		if (partialKey == null) {
+			file = File.createTempFile("download", "", dir);
+			validatorFile = null;
+			Agent.cleanup.add(file::delete);
+		} else {
+			file = new File(dir, partialKey+PARTIAL_SUFFIX);
+			validatorFile = new File(dir, partialKey+PARTIAL_VALIDATOR_SUFFIX);
+		}
+		try {
+			if (partialKey != null && !file.exists() && !hostile && size >= getSegmentThreshold()
+					&& ("http".equals(url.getProtocol()) || "https".equals(url.getProtocol()))) {
+				DownloadedFile df = downloadSegmented(url, file, size, addProgress, updateProgress, hashFunc, expectedHash, cancel);
+				if (df != null) return df;
+			}
+			return downloadToFile(url, file, validatorFile, size, addProgress, updateProgress, hashFunc, expectedHash, hostile, gzipped, cancel);
+		} finally {
+			if (partialKey != null) {
+				synchronized (activePartials) {
+					activePartials.remove(partialKey);
+				}
+			}
+		}
+	}
+	
+	public static final String PARTIAL_SUFFIX = ".part";
+	public static final String PARTIAL_VALIDATOR_SUFFIX = ".part-validator";
+	
+	private static DownloadedFile downloadToFile(URL url, File file, File validatorFile, long size, LongConsumer addProgress, Runnable updateProgress, HashFunction hashFunc, String expectedHash, boolean hostile, boolean gzipped, CancellationSignal cancel) throws IOException {
+		boolean resumable = validatorFile != null && !"file".equals(url.getProtocol());
+		if (!resumable && file.exists()) {
+			Files.delete(file.toPath());
+		}
+		if (resumable && size != -1 && file.length() > size) {
+			Files.delete(file.toPath());
+		}
+		long[] reported = {0};
 		return withRetries(10, () -> {
+			if (cancel != null) cancel.throwIfCancelled();
 			try {
-				long readTotal = 0;
-				long lastProgressUpdate = 0;
+				long have = file.exists() ? file.length() : 0;
 				MessageDigest digest = hashFunc == null ? null : hashFunc.createMessageDigest();
-				try (InputStream in = get(url, hostile)) {
+				if (resumable && have > 0 && size != -1 && have == size) {
+					// finished in an earlier attempt or run, but never used
+					String hash = finishPartial(file, validatorFile, digest, expectedHash);
+					if (hash != null) {
+						report(addProgress, updateProgress, reported, have);
+						Agent.log("INFO", "Reusing complete earlier download of "+url);
+						return new DownloadedFile(hash, file);
+					}
+					have = 0;
+				}
+				String validator = resumable && have > 0 && validatorFile.exists() ? new String(Files.readAllBytes(validatorFile.toPath()), StandardCharsets.UTF_8) : null;
+				InputStream in;
+				boolean append = false;
+				if (resumable) {
+					long fhave = have;
+					Response res = request(url, hostile, have == 0 ? null : bldr -> {
+						bldr.header("Range", "bytes="+fhave+"-");
+						if (validator != null) bldr.header("If-Range", validator);
+					});
+					if (res.code() == 416) {
+						// we might already have all of it
+						res.close();
+						String hash = have > 0 ? finishPartial(file, validatorFile, digest, expectedHash) : null;
+						if (hash != null) {
+							report(addProgress, updateProgress, reported, have);
+							return new DownloadedFile(hash, file);
+						}
+						throw new Retry(url.getHost()+" refused our range request for "+url, IOException::new);
+					}
+					if (res.code() == 206) {
+						if (have == 0 || contentRangeStart(res.header("Content-Range")) != have) {
+							res.close();
+							Files.deleteIfExists(file.toPath());
+							throw new Retry(url.getHost()+" sent the wrong range for "+url, IOException::new);
+						}
+						append = true;
+						Agent.log("INFO", "Resuming download of "+url+" from "+(have/K)+"K");
+					}
+					String newValidator = res.header("ETag");
+					if (newValidator == null || newValidator.startsWith("W/")) newValidator = res.header("Last-Modified");
+					if (!append) {
+						if (newValidator != null) {
+							Files.write(validatorFile.toPath(), newValidator.getBytes(StandardCharsets.UTF_8));
+						} else {
+							Files.deleteIfExists(validatorFile.toPath());
+						}
+					}
+					in = res.body().byteStream();
+				} else {
+					in = get(url, hostile);
+				}
+				if (gzipped) {
+					// the size limit below is enforced on what comes out of this, so a malicious
+					// gzip can't fill the disk
+					InputStream raw = in;
+					try {
+						in = new GZIPInputStream(raw, 16384);
+					} catch (IOException e) {
+						raw.close();
+						throw e;
+					}
+				}
+				if (append) {
+					if (digest != null) updateDigest(digest, file);
+				} else {
+					have = 0;
+				}
+				report(addProgress, updateProgress, reported, have);
+				long readTotal = have;
+				long lastProgressUpdate = 0;
+				if (cancel != null) cancel.register(in);
+				try (InputStream fin = in) {
 					byte[] buf = new byte[16384];
-					try (FileOutputStream out = new FileOutputStream(file)) {
+					try (FileOutputStream out = new FileOutputStream(file, append)) {
 						while (true) {
-							int read = in.read(buf);
+							if (cancel != null) cancel.throwIfCancelled();
+							int read = fin.read(buf);
 							if (read == -1) break;
 							readTotal += read;
 							if (size != -1 && readTotal > size) throw new IOException("Overread; expected "+size+" bytes, but got at least "+readTotal);
 							out.write(buf, 0, read);
 							if (digest != null) digest.update(buf, 0, read);
+							reported[0] += read;
 							if (addProgress != null) addProgress.accept(read);
 							if (updateProgress != null && System.nanoTime()-lastProgressUpdate > ONE_SECOND_IN_NANOS/30) {
 								lastProgressUpdate = System.nanoTime();
@@ -269,10 +773,11 @@ public class RequestHelper {
 							}
 						}
 					}
-				} catch (InterruptedIOException e) {
-					if (addProgress != null) addProgress.accept(-readTotal);
-					if (updateProgress != null) updateProgress.run();
+				} catch (IOException e) {
+					if (cancel != null) cancel.throwIfCancelled();
 					throw e;
+				} finally {
+					if (cancel != null) cancel.unregister(in);
 				}
 				if (size != -1 && readTotal != size) {
 					throw new IOException("Underread; expected "+size+" bytes, but only got "+readTotal);
@@ -283,17 +788,258 @@ public class RequestHelper {
 				String hash = null;
 				if (digest != null) {
 					hash = Bases.bytesToHex(digest.digest());
+					if (hash.equals(expectedHash)) {
+						BlobCache.put(hashFunc, hash, file);
+					} else if (expectedHash != null) {
+						// don't try to resume a bad download
+						Files.deleteIfExists(file.toPath());
+						if (validatorFile != null) Files.deleteIfExists(validatorFile.toPath());
+					}
 				}
+				if (validatorFile != null) Files.deleteIfExists(validatorFile.toPath());
 				return new DownloadedFile(hash, file);
 			} catch (InterruptedIOException e) {
+				if (cancel != null) cancel.throwIfCancelled();
+				if (!resumable) {
+					// nothing we got is kept for the next attempt
+					report(addProgress, updateProgress, reported, 0);
+				}
 				throw new Retry("Connection to "+url.getHost()+" timed out",
 						e);
 			}
 		});
 	}
 	
-	public static String hash(HashFunction func, File f) throws IOException {
-		MessageDigest digest = func.createMessageDigest();
+	private static long getSegmentThreshold() {
+		if (Agent.config == null) return 32L*M;
+		int segments = Agent.config.getInt("download.segments", 4);
+		if (segments <= 1) return Long.MAX_VALUE;
+		return Agent.config.getInt("download.segment_threshold", 32)*(long)M;
+	}
+	
+	/**
+	 * Retrieve a large file over several connections at once, each fetching its own byte range
+	 * into a preallocated file. The extra connections count against the host's limit in the
+	 * {@link HostScheduler}, so a host that's been throttled back isn't sent more than it asked
+	 * for; if it has no room to spare, the download isn't segmented.
+	 * @return the downloaded file, or null if the server doesn't support range requests or has
+	 * 		no room for more connections
+	 */
+	private static DownloadedFile downloadSegmented(URL url, File file, long size, LongConsumer addProgress, Runnable updateProgress, HashFunction hashFunc, String expectedHash, CancellationSignal cancel) throws IOException {
+		int wanted = Agent.config == null ? 4 : Agent.config.getInt("download.segments", 4);
+		int extra = HostScheduler.acquireExtra(url.getHost(), wanted-1);
+		if (extra == 0) {
+			Agent.log("DEBUG", url.getHost()+" has no room for more connections, not segmenting download of "+url);
+			return null;
+		}
+		try {
+			return downloadSegmented(url, file, size, extra+1, addProgress, updateProgress, hashFunc, expectedHash, cancel);
+		} finally {
+			HostScheduler.releaseExtra(url.getHost(), extra);
+		}
+	}
+	
+	private static DownloadedFile downloadSegmented(URL url, File file, long size, int segments, LongConsumer addProgress, Runnable updateProgress, HashFunction hashFunc, String expectedHash, CancellationSignal cancel) throws IOException {
+		long segmentSize = (size+segments-1)/segments;
+		// the progress callbacks we're given aren't expected to be called concurrently
+		LongConsumer syncProgress = addProgress == null ? null : l -> {
+			synchronized (addProgress) {
+				addProgress.accept(l);
+			}
+		};
+		long[] reported = {0};
+		Response first = request(url, false, bldr -> bldr.header("Range", "bytes=0-"+(Math.min(segmentSize, size)-1)));
+		if (first.code() != 206 || contentRangeStart(first.header("Content-Range")) != 0) {
+			first.close();
+			Agent.log("DEBUG", url.getHost()+" doesn't support range requests, not segmenting download of "+url);
+			return null;
+		}
+		Agent.log("INFO", "Downloading "+url+" in "+segments+" segments");
+		boolean success = false;
+		AtomicBoolean abort = new AtomicBoolean();
+		// whichever segment failed first, as the others will fail only because it did
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<Future<?>> futures = new ArrayList<>();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size);
+			FileChannel ch = raf.getChannel();
+			for (int i = 1; i < segments; i++) {
+				long start = i*segmentSize;
+				long end = Math.min(start+segmentSize, size);
+				if (start >= end) break;
+				futures.add(background.submit(() -> {
+					try {
+						downloadSegment(url, ch, start, end, null, syncProgress, updateProgress, reported, abort, cancel);
+					} catch (Throwable t) {
+						// stop the others now, rather than once the first segment is done
+						failure.compareAndSet(null, t);
+						abort.set(true);
+						throw t;
+					}
+					return null;
+				}));
+			}
+			try {
+				downloadSegment(url, ch, 0, Math.min(segmentSize, size), first, syncProgress, updateProgress, reported, abort, cancel);
+			} catch (IOException | RuntimeException e) {
+				failure.compareAndSet(null, e);
+				abort.set(true);
+				Futures.cancelAll(futures);
+				Throwable t = failure.get();
+				if (t instanceof IOException) throw (IOException)t;
+				if (t instanceof RuntimeException) throw (RuntimeException)t;
+				if (t instanceof Error) throw (Error)t;
+				throw e;
+			}
+			for (Future<?> f : futures) {
+				try {
+					Futures.getUninterruptibly(f);
+				} catch (IOException | RuntimeException e) {
+					abort.set(true);
+					Futures.cancelAll(futures);
+					throw e;
+				}
+			}
+			if (cancel != null) cancel.throwIfCancelled();
+			success = true;
+		} finally {
+			if (!success) {
+				abort.set(true);
+				Files.deleteIfExists(file.toPath());
+				synchronized (reported) {
+					if (syncProgress != null) syncProgress.accept(-reported[0]);
+				}
+			}
+		}
+		if (updateProgress != null) updateProgress.run();
+		String hash = null;
+		if (hashFunc != null) {
+			hash = hash(hashFunc, file);
+			if (hash.equals(expectedHash)) {
+				BlobCache.put(hashFunc, hash, file);
+			} else if (expectedHash != null) {
+				Files.deleteIfExists(file.toPath());
+			}
+		}
+		return new DownloadedFile(hash, file);
+	}
+	
+	/**
+	 * @param res an already open response for this range, or null to make a new request
+	 */
+	private static void downloadSegment(URL url, FileChannel ch, long start, long end, Response res, LongConsumer addProgress, Runnable updateProgress, long[] reported, AtomicBoolean abort, CancellationSignal cancel) throws IOException {
+		long[] pos = {start};
+		Response[] initial = {res};
+		withRetries(5, () -> {
+			if (cancel != null) cancel.throwIfCancelled();
+			if (abort.get()) {
+				if (initial[0] != null) initial[0].close();
+				throw new IOException("Another segment of "+url+" failed");
+			}
+			try {
+				Response r = initial[0];
+				initial[0] = null;
+				if (r == null) {
+					r = request(url, false, bldr -> bldr.header("Range", "bytes="+pos[0]+"-"+(end-1)));
+					if (r.code() != 206 || contentRangeStart(r.header("Content-Range")) != pos[0]) {
+						r.close();
+						throw new IOException(url.getHost()+" stopped honoring range requests partway through "+url);
+					}
+				}
+				long lastProgressUpdate = 0;
+				InputStream rin = r.body().byteStream();
+				if (cancel != null) cancel.register(rin);
+				try (InputStream in = rin) {
+					byte[] buf = new byte[16384];
+					ByteBuffer bb = ByteBuffer.wrap(buf);
+					while (pos[0] < end) {
+						if (cancel != null) cancel.throwIfCancelled();
+						if (abort.get()) throw new IOException("Another segment of "+url+" failed");
+						int read = in.read(buf, 0, (int)Math.min(buf.length, end-pos[0]));
+						if (read == -1) throw new IOException("Underread; segment of "+url+" ended at "+pos[0]+", expected "+end);
+						bb.clear().limit(read);
+						while (bb.hasRemaining()) {
+							pos[0] += ch.write(bb, pos[0]);
+						}
+						synchronized (reported) {
+							reported[0] += read;
+						}
+						if (addProgress != null) addProgress.accept(read);
+						if (updateProgress != null && System.nanoTime()-lastProgressUpdate > ONE_SECOND_IN_NANOS/30) {
+							lastProgressUpdate = System.nanoTime();
+							updateProgress.run();
+						}
+					}
+				} catch (IOException e) {
+					if (cancel != null) cancel.throwIfCancelled();
+					throw e;
+				} finally {
+					if (cancel != null) cancel.unregister(rin);
+				}
+				return null;
+			} catch (InterruptedIOException e) {
+				if (cancel != null) cancel.throwIfCancelled();
+				throw new Retry("Connection to "+url.getHost()+" timed out",
+						e);
+			}
+		});
+	}
+	
+	/**
+	 * Bring the amount of progress reported for a download in line with how much of it we have.
+	 */
+	private static void report(LongConsumer addProgress, Runnable updateProgress, long[] reported, long have) {
+		long delta = have-reported[0];
+		reported[0] = have;
+		if (delta != 0 && addProgress != null) addProgress.accept(delta);
+		if (updateProgress != null) updateProgress.run();
+	}
+	
+	/**
+	 * @return the hash of the partial download if it's complete and matches the expected hash,
+	 * 		otherwise null after deleting it
+	 */
+	private static String finishPartial(File file, File validatorFile, MessageDigest digest, String expectedHash) throws IOException {
+		if (digest != null) {
+			updateDigest(digest, file);
+			String hash = Bases.bytesToHex(digest.digest());
+			if (hash.equals(expectedHash)) {
+				Files.deleteIfExists(validatorFile.toPath());
+				return hash;
+			}
+		}
+		Files.deleteIfExists(file.toPath());
+		Files.deleteIfExists(validatorFile.toPath());
+		return null;
+	}
+	
+	/**
+	 * Request the bytes from {@code start} up to {@code end} of the given URL. The caller is
+	 * responsible for closing the response.
+	 * @throws IOException if the server doesn't honor the range, among the usual reasons
+	 */
+	public static Response requestRange(URL url, long start, long end) throws IOException {
+		Response res = request(url, false, bldr -> bldr.header("Range", "bytes="+start+"-"+(end-1)));
+		if (res.code() != 206 || contentRangeStart(res.header("Content-Range")) != start) {
+			res.close();
+			throw new IOException(url.getHost()+" doesn't support range requests");
+		}
+		return res;
+	}
+	
+	private static long contentRangeStart(String contentRange) {
+		// bytes 1234-5678/5679
+		if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+		int dash = contentRange.indexOf('-');
+		if (dash == -1) return -1;
+		try {
+			return Long.parseLong(contentRange.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static void updateDigest(MessageDigest digest, File f) throws IOException {
 		byte[] buf = new byte[16384];
 		try (FileInputStream in = new FileInputStream(f)) {
 			while (true) {
@@ -302,6 +1048,11 @@ public class RequestHelper {
 				digest.update(buf, 0, read);
 			}
 		}
+	}
+	
+	public static String hash(HashFunction func, File f) throws IOException {
+		MessageDigest digest = func.createMessageDigest();
+		updateDigest(digest, f);
 		return Bases.bytesToHex(digest.digest());
 	}
 
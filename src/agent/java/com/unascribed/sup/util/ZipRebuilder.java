@@ -0,0 +1,121 @@
+package com.unascribed.sup.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.unascribed.sup.Agent;
+import com.unascribed.sup.handler.AbstractFormatHandler.FileState;
+import com.unascribed.sup.pieces.ZipRecords;
+import com.unascribed.sup.pieces.ZipRecords.Record;
+import com.unascribed.sup.util.RequestHelper.DownloadedFile;
+
+import okhttp3.Response;
+
+/**
+ * Assembles a new version of a zip from the records it shares with the old version on disk,
+ * fetching only the records that changed out of the remote copy with range requests.
+ */
+public class ZipRebuilder {
+
+	/**
+	 * @param local the old version of the zip
+	 * @param remote where the new version can be retrieved from
+	 * @param records the length and CRC32 of each raw record in the new version, in order
+	 * @return the rebuilt and verified zip, or null if it's not worth rebuilding because too
+	 * 		much of it changed
+	 */
+	public static DownloadedFile rebuild(File local, URL remote, long[][] records, FileState to, File tmpDir) throws IOException {
+		long total = 0;
+		for (long[] r : records) total += r[0];
+		if (total != to.size) throw new IOException("Zip record table doesn't add up to the size of the file ("+total+" != "+to.size+")");
+		List<Record> localRecords = ZipRecords.read(local);
+		if (localRecords == null) return null;
+		Map<String, Long> have = new HashMap<>();
+		for (Record r : localRecords) {
+			have.putIfAbsent(r.length+":"+r.crc, r.offset);
+		}
+		long[] sources = new long[records.length];
+		long missing = 0;
+		for (int i = 0; i < records.length; i++) {
+			Long ofs = have.get(records[i][0]+":"+(int)records[i][1]);
+			sources[i] = ofs == null ? -1 : ofs;
+			if (ofs == null) missing += records[i][0];
+		}
+		if (missing > to.size/2) {
+			Agent.log("DEBUG", "Too much of "+local+" has changed for a partial update to be worth it");
+			return null;
+		}
+		Agent.log("INFO", "Updating "+local+" by retrieving "+(missing/RequestHelper.K)+"K of changed entries out of "+(to.size/RequestHelper.K)+"K");
+		File out = File.createTempFile("rebuilt", "", tmpDir);
+		Agent.cleanup.add(out::delete);
+		boolean success = false;
+		try {
+			MessageDigest digest = to.func.createMessageDigest();
+			byte[] buf = new byte[16384];
+			try (RandomAccessFile raf = new RandomAccessFile(local, "r");
+					OutputStream os = new DigestOutputStream(new FileOutputStream(out), digest)) {
+				long pos = 0;
+				int i = 0;
+				while (i < records.length) {
+					if (sources[i] != -1) {
+						raf.seek(sources[i]);
+						copy(raf, os, records[i][0], buf);
+						pos += records[i][0];
+						i++;
+						continue;
+					}
+					// coalesce runs of changed records into one request
+					long start = pos;
+					while (i < records.length && sources[i] == -1) {
+						pos += records[i][0];
+						i++;
+					}
+					fetchRange(remote, start, pos, os, buf);
+				}
+			}
+			String hash = Bases.bytesToHex(digest.digest());
+			if (!hash.equals(to.hash)) {
+				Agent.log("WARN", "Rebuilt "+local+" hashed to "+hash+", but we expected "+to.hash);
+				return null;
+			}
+			success = true;
+			return new DownloadedFile(hash, out);
+		} finally {
+			if (!success) out.delete();
+		}
+	}
+
+	private static void fetchRange(URL remote, long start, long end, OutputStream os, byte[] buf) throws IOException {
+		try (Response res = RequestHelper.requestRange(remote, start, end)) {
+			try (InputStream in = res.body().byteStream()) {
+				long remaining = end-start;
+				while (remaining > 0) {
+					int r = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+					if (r == -1) throw new IOException("Underread; range of "+remote+" ended "+remaining+" bytes early");
+					os.write(buf, 0, r);
+					remaining -= r;
+				}
+			}
+		}
+	}
+
+	private static void copy(RandomAccessFile raf, OutputStream os, long len, byte[] buf) throws IOException {
+		while (len > 0) {
+			int r = raf.read(buf, 0, (int)Math.min(buf.length, len));
+			if (r == -1) throw new IOException("Unexpected end of file");
+			os.write(buf, 0, r);
+			len -= r;
+		}
+	}
+
+}
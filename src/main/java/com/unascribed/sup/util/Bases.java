@@ -22,6 +22,18 @@ public class Bases {
 		return sb.toString();
 	}
 
+	public static byte[] hexToBytes(String hex) {
+		if (hex.length()%2 != 0) throw new IllegalArgumentException("Hex string has an odd length");
+		byte[] out = new byte[hex.length()/2];
+		for (int i = 0; i < out.length; i++) {
+			int hi = Character.digit(hex.charAt(i*2), 16);
+			int lo = Character.digit(hex.charAt(i*2+1), 16);
+			if (hi == -1 || lo == -1) throw new IllegalArgumentException("Not a hex string: "+hex);
+			out[i] = (byte)((hi<<4)|lo);
+		}
+		return out;
+	}
+
 	public static String b64ToString(String b64) {
 		return new String(Base64.getDecoder().decode(b64), StandardCharsets.UTF_8);
 	}